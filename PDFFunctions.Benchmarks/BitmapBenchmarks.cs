@@ -0,0 +1,49 @@
+using BenchmarkDotNet.Attributes;
+using pdftron.PDF;
+
+namespace PDFFunctions.Benchmarks;
+
+/// <summary>
+/// PDFDraw.GetBitmap of the first page of each corpus file. GetBitmap takes no color space hint and
+/// always returns BGRA, so unlike <see cref="PDFDrawBenchmarks"/> there is no color space sweep.
+/// </summary>
+public class BitmapBenchmarks
+{
+    private PDFDoc doc = null!;
+    private Page page = null!;
+    private PDFDraw draw = null!;
+
+    [ParamsSource(typeof(Corpus), nameof(Corpus.Files))]
+    public string File { get; set; } = null!;
+
+    [Params(72, 150, 300)]
+    public double Dpi { get; set; }
+
+    [Params(true, false)]
+    public bool Smoothing { get; set; }
+
+    [GlobalSetup]
+    public void Setup()
+    {
+        doc = Corpus.Open(File);
+        page = doc.GetPage(1);
+        draw = new PDFDraw();
+        draw.SetDPI(Dpi);
+        draw.SetImageSmoothing(Smoothing, false);
+        draw.SetAntiAliasing(Smoothing);
+    }
+
+    [GlobalCleanup]
+    public void Cleanup()
+    {
+        draw.Dispose();
+        doc.Dispose();
+    }
+
+    [Benchmark]
+    public int GetBitmap()
+    {
+        BitmapInfo info = draw.GetBitmap(page, PDFDraw.PixelFormat.e_bgra, false);
+        return info.Buffer.Length;
+    }
+}
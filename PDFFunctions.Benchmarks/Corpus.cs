@@ -0,0 +1,46 @@
+using pdftron;
+using pdftron.PDF;
+
+namespace PDFFunctions.Benchmarks;
+
+/// <summary>
+/// The sample documents the SDK ships in TestFiles, opened once per benchmark case. PDFNet is
+/// initialized with the same Apryse__Key setting the functions use.
+/// </summary>
+public static class Corpus
+{
+    // BenchmarkDotNet runs each case from a generated project below bin, so look upwards for the repo's lib folder.
+    public static readonly string TEST_FILES = FindTestFiles(AppContext.BaseDirectory);
+
+    public static IEnumerable<string> Files => ["tiger.pdf", "newsletter.pdf", "lorem_ipsum.pdf", "op_blend_test.pdf"];
+
+    private static readonly object sync = new();
+    private static bool initialized;
+
+    public static PDFDoc Open(string file)
+    {
+        lock (sync)
+        {
+            if (!initialized)
+            {
+                PDFNet.Initialize(Environment.GetEnvironmentVariable("Apryse__Key") ?? string.Empty);
+                initialized = true;
+            }
+        }
+
+        PDFDoc doc = new(Path.Combine(TEST_FILES, file));
+        doc.InitSecurityHandler();
+        return doc;
+    }
+
+    private static string FindTestFiles(string start)
+    {
+        for (var dir = new DirectoryInfo(start); dir is not null; dir = dir.Parent)
+        {
+            string candidate = Path.Combine(dir.FullName, "lib", "PDFNetC64", "Samples", "TestFiles");
+            if (Directory.Exists(candidate))
+                return candidate;
+        }
+        throw new DirectoryNotFoundException($"No lib/PDFNetC64/Samples/TestFiles above {start}.");
+    }
+}
@@ -0,0 +1,65 @@
+using BenchmarkDotNet.Attributes;
+using pdftron.Filters;
+using pdftron.PDF;
+using pdftron.SDF;
+
+namespace PDFFunctions.Benchmarks;
+
+/// <summary>
+/// PDFDraw.Export to memory for the first page of each corpus file, per color space hint.
+/// </summary>
+public class PDFDrawBenchmarks
+{
+    private PDFDoc doc = null!;
+    private Page page = null!;
+    private PDFDraw draw = null!;
+    private ObjSet hintSet = null!;
+    private Obj hints = null!;
+
+    [ParamsSource(typeof(Corpus), nameof(Corpus.Files))]
+    public string File { get; set; } = null!;
+
+    [Params(72, 150, 300)]
+    public double Dpi { get; set; }
+
+    [Params(true, false)]
+    public bool Smoothing { get; set; }
+
+    [Params("RGB", "Gray", "CMYK")]
+    public string ColorSpace { get; set; } = null!;
+
+    [GlobalSetup]
+    public void Setup()
+    {
+        doc = Corpus.Open(File);
+        page = doc.GetPage(1);
+        draw = new PDFDraw();
+        draw.SetDPI(Dpi);
+        draw.SetImageSmoothing(Smoothing, false);
+        draw.SetAntiAliasing(Smoothing);
+        hintSet = new ObjSet();
+        hints = hintSet.CreateDict();
+        hints.PutName("ColorSpace", ColorSpace);
+    }
+
+    [GlobalCleanup]
+    public void Cleanup()
+    {
+        hintSet.Dispose();
+        draw.Dispose();
+        doc.Dispose();
+    }
+
+    [Benchmark]
+    public long ExportPng() => Export("PNG");
+
+    [Benchmark]
+    public long ExportTiff() => Export("TIFF");
+
+    private long Export(string format)
+    {
+        using MemoryFilter output = new(0, false);
+        draw.Export(page, output, format, hints);
+        return output.Size();
+    }
+}
@@ -0,0 +1,11 @@
+using BenchmarkDotNet.Columns;
+using BenchmarkDotNet.Configs;
+using BenchmarkDotNet.Diagnosers;
+using BenchmarkDotNet.Running;
+
+// Throughput, latency percentiles and allocations for every benchmark; filter with --filter '*Export*'.
+var config = DefaultConfig.Instance
+    .AddDiagnoser(MemoryDiagnoser.Default)
+    .AddColumn(StatisticColumn.OperationsPerSecond, StatisticColumn.P50, StatisticColumn.P90, StatisticColumn.P95, StatisticColumn.P100);
+
+BenchmarkSwitcher.FromAssembly(typeof(Program).Assembly).Run(args, config);
@@ -0,0 +1,62 @@
+using BenchmarkDotNet.Attributes;
+using pdftron.Common;
+using pdftron.PDF;
+
+namespace PDFFunctions.Benchmarks;
+
+/// <summary>
+/// PDFRasterizer.Rasterize of the whole first page of each corpus file into a BGRA buffer.
+/// </summary>
+public class RasterizerBenchmarks
+{
+    private PDFDoc doc = null!;
+    private Page page = null!;
+    private PDFRasterizer rasterizer = null!;
+    private Matrix2D transform = null!;
+    private int width;
+    private int height;
+
+    [ParamsSource(typeof(Corpus), nameof(Corpus.Files))]
+    public string File { get; set; } = null!;
+
+    [Params(72, 150, 300)]
+    public double Dpi { get; set; }
+
+    [Params(true, false)]
+    public bool Smoothing { get; set; }
+
+    // Display list caching, as used by the tile renderer.
+    [Params(true, false)]
+    public bool Caching { get; set; }
+
+    [GlobalSetup]
+    public void Setup()
+    {
+        doc = Corpus.Open(File);
+        page = doc.GetPage(1);
+        rasterizer = new PDFRasterizer();
+        rasterizer.SetImageSmoothing(Smoothing, false);
+        rasterizer.SetAntiAliasing(Smoothing);
+        rasterizer.SetCaching(Caching);
+
+        double scale = Dpi / 72;
+        // Like GetDefaultMatrix, the page width and height take the page rotation into account.
+        width = (int)Math.Ceiling(page.GetPageWidth(Page.Box.e_crop) * scale);
+        height = (int)Math.Ceiling(page.GetPageHeight(Page.Box.e_crop) * scale);
+        transform = new Matrix2D(scale, 0, 0, scale, 0, 0) * page.GetDefaultMatrix(true, Page.Box.e_crop);
+    }
+
+    [GlobalCleanup]
+    public void Cleanup()
+    {
+        rasterizer.Dispose();
+        doc.Dispose();
+    }
+
+    [Benchmark]
+    public int Rasterize()
+    {
+        byte[] pixels = rasterizer.Rasterize(page, width, height, width * 4, 4, false, transform);
+        return pixels.Length;
+    }
+}
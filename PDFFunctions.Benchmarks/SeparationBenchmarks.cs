@@ -0,0 +1,67 @@
+using BenchmarkDotNet.Attributes;
+using pdftron.PDF;
+using pdftron.SDF;
+
+namespace PDFFunctions.Benchmarks;
+
+/// <summary>
+/// PDFDraw.Export with the Separation color space hint for the first page of op_blend_test, the corpus
+/// file with spot colors and overprint, set up like RenderSeparations. PDFDraw writes separation plates
+/// to files only (<c>plate_&lt;ink&gt;.&lt;ext&gt;</c>), so each export overwrites the same plates in a temp folder.
+/// </summary>
+public class SeparationBenchmarks
+{
+    private PDFDoc doc = null!;
+    private Page page = null!;
+    private PDFDraw draw = null!;
+    private ObjSet hintSet = null!;
+    private Obj hints = null!;
+    private string plateDirectory = null!;
+
+    [Params("op_blend_test.pdf")]
+    public string File { get; set; } = null!;
+
+    [Params(72, 150, 300)]
+    public double Dpi { get; set; }
+
+    [Params(true, false)]
+    public bool Smoothing { get; set; }
+
+    [GlobalSetup]
+    public void Setup()
+    {
+        doc = Corpus.Open(File);
+        page = doc.GetPage(1);
+        draw = new PDFDraw();
+        draw.SetDPI(Dpi);
+        draw.SetImageSmoothing(Smoothing, false);
+        draw.SetAntiAliasing(Smoothing);
+        draw.SetOverprint(PDFRasterizer.OverprintPreviewMode.e_op_on);
+        hintSet = new ObjSet();
+        hints = hintSet.CreateDict();
+        hints.PutName("ColorSpace", "Separation");
+        plateDirectory = Path.Combine(Path.GetTempPath(), Guid.NewGuid().ToString());
+        Directory.CreateDirectory(plateDirectory);
+    }
+
+    [GlobalCleanup]
+    public void Cleanup()
+    {
+        Directory.Delete(plateDirectory, true);
+        hintSet.Dispose();
+        draw.Dispose();
+        doc.Dispose();
+    }
+
+    [Benchmark]
+    public int ExportPng() => Export("PNG");
+
+    [Benchmark]
+    public int ExportTiff() => Export("TIFF");
+
+    private int Export(string format)
+    {
+        draw.Export(page, Path.Combine(plateDirectory, "plate"), format, hints);
+        return Directory.GetFiles(plateDirectory, $"plate_*.{format.ToLowerInvariant()}").Length;
+    }
+}
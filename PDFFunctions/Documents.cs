@@ -1,13 +1,20 @@
+using Microsoft.AspNetCore.Http;
+using Microsoft.AspNetCore.Mvc;
 using Microsoft.Azure.Functions.Worker;
 using Microsoft.Azure.Functions.Worker.Http;
 using Microsoft.Extensions.Logging;
 using Microsoft.Extensions.Options;
 using PDFFunctions.Options;
+using PDFFunctions.Services;
 using pdftron;
 using pdftron.PDF;
 using pdftron.SDF;
 using System.Collections;
+using System.IO.Compression;
 using System.Net;
+using System.Runtime.CompilerServices;
+using System.Text.Json;
+using static PDFFunctions.HttpHelpers;
 
 namespace PDFFunctions;
 
@@ -15,30 +22,45 @@ public class Documents
 {
     private readonly ILogger logger;
     private readonly ApryseOptions options;
+    private readonly PDFNetRuntime runtime;
+    private readonly ConversionEngine conversionEngine;
+    private readonly FormsOptions formsOptions;
+    private readonly TemplateCache templateCache;
+    private readonly FormFiller formFiller;
+    private const int STREAM_CHUNK_SIZE = 64 * 1024;
     private readonly string inputPath = @"..\..\..\..\sample\input";
     private readonly string outputPath = @"..\..\..\..\sample\output";
 
-    public Documents(ILoggerFactory loggerFactory, IOptions<ApryseOptions> options)
+    public Documents(ILoggerFactory loggerFactory, IOptions<ApryseOptions> options, PDFNetRuntime runtime, ConversionEngine conversionEngine,
+        IOptions<FormsOptions> formsOptions, TemplateCache templateCache, FormFiller formFiller)
     {
         this.options = options.Value;
+        this.runtime = runtime;
+        this.conversionEngine = conversionEngine;
+        this.formsOptions = formsOptions.Value;
+        this.templateCache = templateCache;
+        this.formFiller = formFiller;
         logger = loggerFactory.CreateLogger<Documents>();
-        PDFNet.Initialize(this.options.Key);
-        PDFNet.AddResourceSearchPath(@"..\..\..\..\lib\");
     }
 
     [Function(nameof(FillData))]
-    public async Task<HttpResponseData> FillData(
+    public async Task<IActionResult> FillData(
         [HttpTrigger(AuthorizationLevel.Anonymous, "post", Route = nameof(FillData))]
         HttpRequestData req)
     {
         logger.LogInformation($"C# HTTP trigger function {nameof(FillData)} processed a request.");
         Dictionary<string, string> keyValuePairs = await req.ReadFromJsonAsync<Dictionary<string, string>>();
-        FillData(keyValuePairs);
+        if (IsStreaming(req))
+            return await StreamResponse(req, "application/pdf", "filledfile.pdf", body =>
+            {
+                FillData(keyValuePairs, body);
+                return Task.CompletedTask;
+            });
+
+        using (runtime.Acquire())
+            FillData(keyValuePairs);
 
-        var response = req.CreateResponse(HttpStatusCode.OK);
-        response.Headers.Add("Content-Type", "text/plain; charset=utf-8");
-        response.WriteString("Document data filled.");
-        return response;
+        return TextResult(HttpStatusCode.OK, "Document data filled.");
     }
 
     private void FillData(Dictionary<string, string> keyValuePairs)
@@ -49,71 +71,191 @@ public class Documents
 
         try
         {
-            var originalFilePath = @"C:\Temp\Test.pdf";
-            var stream = new FileStream(originalFilePath, FileMode.Open, FileAccess.Read);
-            //PDFDoc doc = new(originalFilePath);
-            PDFDoc doc = new(stream);
+            using var streamToSave = new FileStream(Path.Combine(filledPath, "filledfile.pdf"), FileMode.Create, FileAccess.Write);
+            FillData(keyValuePairs, streamToSave);
+        }
+        catch (Exception e)
+        {
+            logger.LogInformation("Exception caught:\n{0}", e);
+        }
+    }
 
-            foreach (var keyValuePair in keyValuePairs)
-            {
-                Field field = doc.GetField(keyValuePair.Key);
-                if (field is null)
-                    continue;
-                field.SetValue(keyValuePair.Value);
-                field.RefreshAppearance();
-            }
+    private void FillData(Dictionary<string, string> keyValuePairs, Stream output)
+    {
+        // The template is parsed once and indexed; each request works on its own in-memory copy.
+        CompiledTemplate template = templateCache.Get(formsOptions.TemplatePath);
+        using PDFDoc doc = formFiller.Fill(template, keyValuePairs);
+        doc.Save(output, SDFDoc.SaveOptions.e_linearized);
+    }
 
-            var streamToSave = new FileStream(Path.Combine(filledPath, "filledfile.pdf"), FileMode.Create, FileAccess.Write);
-            doc.Save(streamToSave, SDFDoc.SaveOptions.e_linearized);
-            //doc.Save(Path.Combine(filledPath, "filledfile.pdf"), SDFDoc.SaveOptions.e_linearized);
+    [Function(nameof(FillDataBatch))]
+    public async Task<IActionResult> FillDataBatch(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "post", Route = nameof(FillDataBatch))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(FillDataBatch)} processed a request.");
+        var cancellationToken = req.FunctionContext.CancellationToken;
+        bool csv = string.Equals(req.Query["format"], "csv", StringComparison.OrdinalIgnoreCase)
+            || (req.Headers.TryGetValues("Content-Type", out var contentTypes)
+                && contentTypes.Any(t => t.StartsWith("text/csv", StringComparison.OrdinalIgnoreCase)));
+        // Records are read while the batch is filled, never all at once.
+        var records = csv
+            ? RecordReader.ReadCsvAsync(req.Body, cancellationToken)
+            : RecordReader.ReadJsonLinesAsync(req.Body, cancellationToken);
+        bool merged = string.Equals(req.Query["output"], "merged", StringComparison.OrdinalIgnoreCase);
+
+        List<FilledRecord> results;
+        try
+        {
+            using (runtime.Acquire())
+                results = await FillDataBatch(records, merged, cancellationToken);
         }
-        catch (Exception e)
+        catch (Exception e) when (e is InvalidDataException or JsonException)
+        {
+            return TextResult(HttpStatusCode.BadRequest, e.Message);
+        }
+        catch (Exception e) when (e is not OperationCanceledException)
         {
             logger.LogInformation("Exception caught:\n{0}", e);
+            return TextResult(HttpStatusCode.InternalServerError, $"Batch fill failed: {e.Message}");
         }
-        finally
+
+        var failed = results.Where(r => r.Error is not null).ToList();
+        if (failed.Count == 0)
+            return TextResult(HttpStatusCode.OK, $"{results.Count} document(s) filled.");
+        return TextResult(HttpStatusCode.InternalServerError,
+            $"{results.Count - failed.Count} document(s) filled. {failed.Count} of {results.Count} record(s) failed: {string.Join(", ", failed.Select(r => $"{r.Number} ({r.Error})"))}");
+    }
+
+    private async Task<List<FilledRecord>> FillDataBatch(IAsyncEnumerable<Dictionary<string, string>> records, bool merged, CancellationToken cancellationToken)
+    {
+        string filledPath = Path.Combine(outputPath, "filled");
+        string batchPath = Path.Combine(filledPath, "batch");
+        if (!Directory.Exists(batchPath))
+            Directory.CreateDirectory(batchPath);
+
+        // One template parse for the whole batch; records are filled on the conversion workers.
+        CompiledTemplate template = templateCache.Get(formsOptions.TemplatePath);
+        var inputs = NumberRecords(records, cancellationToken);
+        var results = new List<FilledRecord>();
+        if (merged)
         {
-            PDFNet.Terminate();
+            // A merged batch is one document, so any failing record fails the whole request.
+            using PDFDoc merged_doc = new();
+            await conversionEngine.PrepareInOrderAsync(inputs, input =>
+            {
+                PDFDoc doc = formFiller.Fill(template, input.Record);
+                try
+                {
+                    // Flattening keeps only the appearance streams, so a form left to the viewer gets them generated here.
+                    if (formsOptions.AppearanceStrategy == AppearanceStrategy.NeedAppearances)
+                        doc.RefreshFieldAppearances();
+                    // Every copy has the same field names, so only the filled appearance is kept.
+                    doc.FlattenAnnotations(true);
+                    return new FilledRecord(input.Number, doc, null);
+                }
+                catch
+                {
+                    doc.Dispose();
+                    throw;
+                }
+            }, filled =>
+            {
+                ArrayList import_list = new ArrayList();
+                for (PageIterator itr = filled.Doc!.GetPageIterator(); itr.HasNext(); itr.Next())
+                    import_list.Add(itr.Current());
+                foreach (Page page in merged_doc.ImportPages(import_list))
+                    merged_doc.PagePushBack(page);
+                results.Add(filled);
+            }, cancellationToken);
+            merged_doc.Save(Path.Combine(filledPath, "filledbatch.pdf"), SDFDoc.SaveOptions.e_linearized);
+        }
+        else
+        {
+            // A failing record is reported and the rest of the batch is still written.
+            await conversionEngine.PrepareInOrderAsync(inputs, input =>
+            {
+                try
+                {
+                    using PDFDoc doc = formFiller.Fill(template, input.Record);
+                    doc.Save(Path.Combine(batchPath, $"filledfile_{input.Number}.pdf"), SDFDoc.SaveOptions.e_linearized);
+                    return new FilledRecord(input.Number, null, null);
+                }
+                catch (Exception e)
+                {
+                    logger.LogInformation("Exception caught filling record {0}:\n{1}", input.Number, e);
+                    return new FilledRecord(input.Number, null, e.Message);
+                }
+            }, results.Add, cancellationToken);
         }
+        return results;
+    }
+
+    private static async IAsyncEnumerable<(Dictionary<string, string> Record, int Number)> NumberRecords(IAsyncEnumerable<Dictionary<string, string>> records, [EnumeratorCancellation] CancellationToken cancellationToken)
+    {
+        int number = 0;
+        await foreach (var record in records.WithCancellation(cancellationToken))
+            yield return (record, ++number);
+    }
+
+    private sealed record FilledRecord(int Number, PDFDoc? Doc, string? Error) : IDisposable
+    {
+        public void Dispose() => Doc?.Dispose();
     }
 
     [Function(nameof(Merge))]
-    public HttpResponseData Merge(
+    public async Task<IActionResult> Merge(
         [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(Merge))]
         HttpRequestData req)
     {
         logger.LogInformation($"C# HTTP trigger function {nameof(Merge)} processed a request.");
-        MergePDFs();
+        bool streaming = string.Equals(req.Query["mode"], "streaming", StringComparison.OrdinalIgnoreCase);
+        var cancellationToken = req.FunctionContext.CancellationToken;
+        if (IsStreaming(req))
+        {
+            return await StreamResponse(req, "application/pdf", "mergedfile.pdf", body => streaming
+                ? MergePDFsStreaming(Directory.GetFiles(inputPath), body, cancellationToken)
+                : MergePDFs(Directory.GetFiles(inputPath), body, cancellationToken));
+        }
 
-        var response = req.CreateResponse(HttpStatusCode.OK);
-        response.Headers.Add("Content-Type", "text/plain; charset=utf-8");
-        response.WriteString("All documents merged.");
-        return response;
+        using (runtime.Acquire())
+        {
+            if (streaming)
+                await MergePDFsStreaming(cancellationToken);
+            else
+                await MergePDFs(cancellationToken);
+        }
+
+        return TextResult(HttpStatusCode.OK, "All documents merged.");
     }
 
     [Function(nameof(ConvertDoc))]
-    public HttpResponseData ConvertDoc(
+    public async Task<IActionResult> ConvertDoc(
         [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = $"{nameof(ConvertDoc)}")]
         HttpRequestData req)
     {
         logger.LogInformation($"C# HTTP trigger function {nameof(ConvertDoc)} processed a request.");
-        ConvertDoc();
+        if (IsStreaming(req))
+            return await StreamResponse(req, "application/zip", "converted.zip", body => ConvertDoc(body, req.FunctionContext.CancellationToken));
+
+        IReadOnlyList<ConversionResult> results;
+        using (runtime.Acquire())
+            results = await ConvertDoc(req.FunctionContext.CancellationToken);
 
-        var response = req.CreateResponse(HttpStatusCode.OK);
-        response.Headers.Add("Content-Type", "text/plain; charset=utf-8");
-        response.WriteString("Document converted.");
-        return response;
+        var failed = results.Where(r => !r.Succeeded).ToList();
+        return TextResult(HttpStatusCode.OK, failed.Count == 0
+            ? "Document converted."
+            : $"Document converted. {failed.Count} of {results.Count} file(s) failed: {string.Join(", ", failed.Select(r => Path.GetFileName(r.File)))}");
     }
 
-    private void ConvertDoc()
+    private async Task<IReadOnlyList<ConversionResult>> ConvertDoc(CancellationToken cancellationToken)
     {
         string convertedPath = Path.Combine(outputPath, "converted");
         if (!Directory.Exists(convertedPath))
             Directory.CreateDirectory(convertedPath);
-        foreach (string originalFile in Directory.GetFiles(inputPath))
+
+        return await conversionEngine.ConvertAsync(Directory.EnumerateFiles(inputPath), (originalFile, doc) =>
         {
-            PDFDoc doc = new();
-            pdftron.PDF.Convert.ToPdf(doc, originalFile);
             var pdfFile = Path.GetFileName(originalFile) + ".pdf";
             doc.Save(Path.Combine(convertedPath, pdfFile), SDFDoc.SaveOptions.e_linearized);
 
@@ -122,49 +264,160 @@ public class Documents
             // Optionally convert only the first page
             wordOutputOptions.SetPages(1, 1);
             var docFile = Path.GetFileNameWithoutExtension(originalFile);
-            // Requires the Structured Output module
-            pdftron.PDF.Convert.ToWord(Path.Combine(convertedPath, pdfFile), Path.Combine(convertedPath, docFile) + ".docx", wordOutputOptions);
+            // Requires the Structured Output module. The converted document is reused instead of re-reading the saved PDF.
+            pdftron.PDF.Convert.ToWord(doc, Path.Combine(convertedPath, docFile) + ".docx", wordOutputOptions);
+        }, cancellationToken);
+    }
+
+    private async Task ConvertDoc(Stream output, CancellationToken cancellationToken)
+    {
+        // Both outputs of every file go into one zip written straight to the caller. Workers convert
+        // in parallel; only adding the finished entries to the archive is serialized.
+        using var archive = new ZipArchive(output, ZipArchiveMode.Create, leaveOpen: true);
+        var results = await conversionEngine.ConvertAsync(Directory.EnumerateFiles(inputPath), (originalFile, doc) =>
+        {
+            byte[] pdf = doc.Save(SDFDoc.SaveOptions.e_linearized);
+            lock (archive)
+                AddEntry(archive, Path.GetFileName(originalFile) + ".pdf", new MemoryStream(pdf));
+
+            pdftron.PDF.Convert.WordOutputOptions wordOutputOptions = new();
+
+            // Optionally convert only the first page
+            wordOutputOptions.SetPages(1, 1);
+            // ToWord can only write to a path, so the DOCX goes through a private temp file.
+            string wordFile = Path.Combine(Path.GetTempPath(), $"{Guid.NewGuid()}.docx");
+            try
+            {
+                pdftron.PDF.Convert.ToWord(doc, wordFile, wordOutputOptions);
+                using var word = new FileStream(wordFile, FileMode.Open, FileAccess.Read);
+                lock (archive)
+                    AddEntry(archive, Path.GetFileNameWithoutExtension(originalFile) + ".docx", word);
+            }
+            finally
+            {
+                File.Delete(wordFile);
+            }
+        }, cancellationToken);
+
+        foreach (var failed in results.Where(r => !r.Succeeded))
+            logger.LogInformation("Conversion of {0} failed: {1}", failed.File, failed.Error);
+    }
+
+    private static void AddEntry(ZipArchive archive, string name, Stream content)
+    {
+        using Stream entry = archive.CreateEntry(name, CompressionLevel.Fastest).Open();
+        content.CopyTo(entry, STREAM_CHUNK_SIZE);
+    }
+
+    private static bool IsStreaming(HttpRequestData req) =>
+        string.Equals(req.Query["stream"], "true", StringComparison.OrdinalIgnoreCase);
+
+    private async Task<IActionResult> StreamResponse(HttpRequestData req, string contentType, string fileName, Func<Stream, Task> write)
+    {
+        // The result is written directly into the response body instead of the shared output folder, and
+        // reaches the caller as it is written. PDFDoc.Save and ZipArchive write synchronously.
+        HttpResponse response = GetStreamingResponse(req, allowSynchronousIO: true);
+        response.StatusCode = (int)HttpStatusCode.OK;
+        response.ContentType = contentType;
+        response.Headers.ContentDisposition = $"attachment; filename={fileName}";
+        try
+        {
+            using (runtime.Acquire())
+                await write(response.Body);
+            return new EmptyResult();
+        }
+        catch (Exception e)
+        {
+            logger.LogInformation("Exception caught:\n{0}", e);
+            if (!response.HasStarted)
+                return TextResult(HttpStatusCode.InternalServerError, "Document could not be produced.");
+            // Part of the document is out already; dropping the connection tells the caller it is incomplete.
+            response.HttpContext.Abort();
+            return new EmptyResult();
         }
     }
 
-    private void MergePDFs()
+    private async Task MergePDFs(CancellationToken cancellationToken)
     {
         // Relative path to the folder containing test files.
         string mergedPath = Path.Combine(outputPath, "merged");
         if (!Directory.Exists(mergedPath))
             Directory.CreateDirectory(mergedPath);
-        string temp_pdf_folder_name = Path.Combine(Path.GetTempPath(), Guid.NewGuid().ToString());
 
         try
         {
-            if (!Directory.Exists(temp_pdf_folder_name))
-                Directory.CreateDirectory(temp_pdf_folder_name);
-            var files = Directory.GetFiles(inputPath);
+            using var output = new FileStream(Path.Combine(mergedPath, "mergedfile.pdf"), FileMode.Create, FileAccess.Write);
+            await MergePDFs(Directory.GetFiles(inputPath), output, cancellationToken);
+            logger.LogInformation("Done. Result saved in mergedfile.pdf...");
+        }
+        catch (Exception e)
+        {
+            logger.LogInformation("Exception caught:\n{0}", e);
+        }
+    }
 
-            using (PDFDoc new_doc = new()) // Create a new document
-            using (ElementBuilder builder = new())
-            using (ElementWriter writer = new())
-            {
-                int doc_order = 1;
-                foreach (var file in files)
-                {
-                    MergeFile(new_doc, builder, writer, file, temp_pdf_folder_name, ref doc_order);
-                }
-                new_doc.Save(Path.Combine(mergedPath, "mergedfile.pdf"), SDFDoc.SaveOptions.e_linearized);
-                logger.LogInformation("Done. Result saved in newsletter_booklet.pdf...");
-            }
+    private async Task MergePDFs(IReadOnlyList<string> files, Stream output, CancellationToken cancellationToken)
+    {
+        using (PDFDoc new_doc = new()) // Create a new document
+        {
+            FormXObjectCache page_cache = new();
+            await conversionEngine.PrepareInOrderAsync(files, PrepareMergeInput, input => AppendPages(new_doc, page_cache, input), cancellationToken);
+            new_doc.Save(output, SDFDoc.SaveOptions.e_linearized);
+        }
+    }
+
+    private async Task MergePDFsStreaming(CancellationToken cancellationToken)
+    {
+        string mergedPath = Path.Combine(outputPath, "merged");
+        if (!Directory.Exists(mergedPath))
+            Directory.CreateDirectory(mergedPath);
+
+        try
+        {
+            using var output = new FileStream(Path.Combine(mergedPath, "mergedfile.pdf"), FileMode.Create, FileAccess.Write);
+            await MergePDFsStreaming(Directory.GetFiles(inputPath), output, cancellationToken);
+            logger.LogInformation("Done. Result streamed to mergedfile.pdf...");
         }
         catch (Exception e)
         {
             logger.LogInformation("Exception caught:\n{0}", e);
         }
+    }
+
+    private async Task MergePDFsStreaming(IReadOnlyList<string> files, Stream output, CancellationToken cancellationToken)
+    {
+        // Each input is committed with an incremental save, which only appends a new section to the
+        // work file. The appended bytes are copied to the output right away, so the caller receives the
+        // document while later inputs are still being converted and no final full rewrite is needed.
+        // The work document is closed after every input and reopened for the next one, so pages already
+        // written are not kept in memory; shared pages are found again by object number.
+        string work_file = Path.Combine(Path.GetTempPath(), $"{Guid.NewGuid()}.pdf");
+        try
+        {
+            using (PDFDoc empty_doc = new())
+                empty_doc.Save(work_file, SDFDoc.SaveOptions.e_remove_unused);
+
+            long flushed = CopyAppended(work_file, output, 0);
+            var page_objects = new Dictionary<string, int>();
+            await conversionEngine.PrepareInOrderAsync(files, PrepareMergeInput, input =>
+            {
+                using PDFDoc new_doc = new(work_file);
+                FormXObjectCache page_cache = new();
+                foreach (var (key, obj_num) in page_objects)
+                    page_cache.Add(key, new_doc.GetSDFDoc().GetObj(obj_num));
+                AppendPages(new_doc, page_cache, input);
+                new_doc.Save(work_file, SDFDoc.SaveOptions.e_incremental);
+                foreach (var (key, obj_num) in page_cache.ObjectNumbers)
+                    page_objects[key] = obj_num;
+                flushed = CopyAppended(work_file, output, flushed);
+            }, cancellationToken);
+        }
         finally
         {
-            PDFNet.Terminate();
             try
             {
-                if (Directory.Exists(temp_pdf_folder_name))
-                    Directory.Delete(temp_pdf_folder_name, true);
+                if (File.Exists(work_file))
+                    File.Delete(work_file);
             }
             catch
             {
@@ -172,41 +425,111 @@ public class Documents
         }
     }
 
-    private void MergeFile(PDFDoc new_doc, ElementBuilder builder, ElementWriter writer, string file, string temp_pdf_folder_name, ref int doc_order)
+    private static long CopyAppended(string file, Stream output, long position)
     {
-        var extension = Path.GetExtension(file)?.ToLower();
-        var new_file = extension switch
+        using var input = new FileStream(file, FileMode.Open, FileAccess.Read, FileShare.ReadWrite);
+        input.Seek(position, SeekOrigin.Begin);
+        input.CopyTo(output, STREAM_CHUNK_SIZE);
+        output.Flush();
+        return input.Position;
+    }
+
+    private static MergeInput PrepareMergeInput(string file)
+    {
+        // Runs on a conversion worker: the input is opened or converted in memory, decrypted and
+        // scaled onto letter pages of its own document, so no temp files are involved.
+        using PDFDoc in_doc = OpenAsPDF(file);
+        PDFDoc letter_doc = new();
+        try
+        {
+            using (ElementBuilder builder = new())
+            using (ElementWriter writer = new())
+                MergePDFFile(letter_doc, builder, writer, new FormXObjectCache(), in_doc);
+
+            List<string> page_keys = new();
+            for (PageIterator itr = letter_doc.GetPageIterator(); itr.HasNext(); itr.Next())
+                page_keys.Add(FormXObjectCache.ComputeKey(itr.Current()));
+            return new MergeInput(letter_doc, page_keys);
+        }
+        catch
         {
-            ".pdf" => file,
-            _ => CreateTempPDF(file, temp_pdf_folder_name, ref doc_order)
-        };
-        MergePDFFile(new_doc, builder, writer, new_file);
+            letter_doc.Dispose();
+            throw;
+        }
     }
 
-    private string CreateTempPDF(string file, string temp_pdf_folder_name, ref int doc_order)
+    private static void AppendPages(PDFDoc new_doc, FormXObjectCache page_cache, MergeInput input)
     {
-        var doc = new PDFDoc();
-        pdftron.PDF.Convert.ToPdf(doc, file);
-        var file_name = Path.Combine(temp_pdf_folder_name, $"doc_{doc_order++}.pdf");
-        doc.Save(file_name, SDFDoc.SaveOptions.e_linearized);
-        return file_name;
+        // Assembly only imports pages. A letter page identical to one already in the merged document
+        // shares that page's content and resources instead of being imported again.
+        ArrayList import_list = new ArrayList();
+        HashSet<string> pending_keys = new();
+        int index = 0;
+        for (PageIterator itr = input.Doc.GetPageIterator(); itr.HasNext(); itr.Next(), ++index)
+        {
+            if (!page_cache.Contains(input.PageKeys[index]) && pending_keys.Add(input.PageKeys[index]))
+                import_list.Add(itr.Current());
+        }
+
+        ArrayList imported_pages = new_doc.ImportPages(import_list);
+        int next_import = 0;
+        foreach (var key in input.PageKeys)
+        {
+            if (page_cache.TryGetForm(key, out Obj page_dict))
+            {
+                Page new_page = new_doc.PageCreate(new Page(page_dict).GetMediaBox());
+                new_page.GetSDFObj().Put("Contents", page_dict.FindObj("Contents"));
+                new_page.GetSDFObj().Put("Resources", page_dict.FindObj("Resources"));
+                new_doc.PagePushBack(new_page);
+            }
+            else
+            {
+                Page new_page = (Page)imported_pages[next_import++];
+                new_doc.PagePushBack(new_page);
+                page_cache.Add(key, new_page.GetSDFObj());
+            }
+        }
     }
 
-    private static void MergePDFFile(PDFDoc new_doc, ElementBuilder builder, ElementWriter writer, string pdf_file)
+    private static PDFDoc OpenAsPDF(string file)
     {
-        FileStream fileStream = new FileStream(pdf_file, FileMode.Open, FileAccess.Read);
-        MergePDFFile(new_doc, builder, writer, fileStream);
+        var extension = Path.GetExtension(file)?.ToLower();
+        if (extension == ".pdf")
+            return new PDFDoc(file);
+
+        PDFDoc doc = new();
+        try
+        {
+            pdftron.PDF.Convert.ToPdf(doc, file);
+            return doc;
+        }
+        catch
+        {
+            doc.Dispose();
+            throw;
+        }
     }
 
-    private static void MergePDFFile(PDFDoc new_doc, ElementBuilder builder, ElementWriter writer, Stream stream)
+    private static void MergePDFFile(PDFDoc new_doc, ElementBuilder builder, ElementWriter writer, FormXObjectCache form_cache, PDFDoc in_doc)
     {
         ArrayList import_list = new ArrayList();
-        var in_doc = new PDFDoc(stream);
+        List<Page> src_pages = new();
+        List<string> page_keys = new();
+        HashSet<string> pending_keys = new();
         in_doc.InitSecurityHandler();
         for (PageIterator itr = in_doc.GetPageIterator(); itr.HasNext(); itr.Next())
-            import_list.Add(itr.Current());
+        {
+            Page page = itr.Current();
+            string key = FormXObjectCache.ComputeKey(page);
+            // Pages already placed once, in this or an earlier input, reuse their Form XObject and are not imported again.
+            if (!form_cache.Contains(key) && pending_keys.Add(key))
+                import_list.Add(page);
+            src_pages.Add(page);
+            page_keys.Add(key);
+        }
 
         ArrayList imported_pages = new_doc.ImportPages(import_list);
+        int next_import = 0;
 
         // Paper dimension for A3 format in points. Because one inch has 
         // 72 points, 11.69 inch 72 = 841.69 points vs 1190.88 points
@@ -274,15 +597,24 @@ DL Envelope 4.33 x 8.66 312 x 624
         Rect media_box = new Rect(0, 0, 612, 792);
         double mid_point = media_box.Width() / 2;
 
-        for (int i = 0; i < imported_pages.Count; ++i)
+        for (int i = 0; i < src_pages.Count; ++i)
         {
             // Create a blank new letter page and place on it two pages from the input document.
             Page new_page = new_doc.PageCreate(media_box);
             writer.Begin(new_page);
 
             // Place the first page
-            Page src_page = (Page)imported_pages[i];
-            Element element = builder.CreateForm(src_page);
+            Page src_page = src_pages[i];
+            Element element;
+            if (form_cache.TryGetForm(page_keys[i], out Obj form))
+            {
+                element = builder.CreateForm(form);
+            }
+            else
+            {
+                element = builder.CreateForm((Page)imported_pages[next_import++]);
+                form_cache.Add(page_keys[i], element.GetXObject());
+            }
 
             double sc_x = media_box.Width() / src_page.GetPageWidth();
             double sc_y = media_box.Height() / src_page.GetPageHeight();
@@ -294,4 +626,13 @@ DL Envelope 4.33 x 8.66 312 x 624
             new_doc.PagePushBack(new_page);
         }
     }
+
+    private sealed class MergeInput(PDFDoc doc, List<string> pageKeys) : IDisposable
+    {
+        public PDFDoc Doc { get; } = doc;
+
+        public List<string> PageKeys { get; } = pageKeys;
+
+        public void Dispose() => Doc.Dispose();
+    }
 }
@@ -0,0 +1,64 @@
+using Microsoft.AspNetCore.Http;
+using Microsoft.AspNetCore.Http.Features;
+using Microsoft.AspNetCore.Mvc;
+using Microsoft.Azure.Functions.Worker;
+using Microsoft.Azure.Functions.Worker.Http;
+using System.Net;
+
+namespace PDFFunctions;
+
+/// <summary>
+/// Request parsing and plain responses shared by the HTTP functions.
+/// </summary>
+internal static class HttpHelpers
+{
+    /// <summary>
+    /// The file named by the <c>file</c> query parameter in <paramref name="inputPath"/>, or null when it does not exist.
+    /// Only the file name is used, so the parameter cannot point outside the input folder.
+    /// </summary>
+    public static string? GetInputFile(HttpRequestData req, string inputPath)
+    {
+        string? name = req.Query["file"];
+        if (string.IsNullOrWhiteSpace(name))
+            return null;
+        string file = Path.Combine(inputPath, Path.GetFileName(name));
+        return File.Exists(file) ? file : null;
+    }
+
+    /// <summary>
+    /// Parses an enum query value by member name, ignoring case. Unlike <see cref="Enum.TryParse{TEnum}(string?, bool, out TEnum)"/>,
+    /// numeric strings such as <c>5</c> are rejected instead of becoming undefined values.
+    /// </summary>
+    public static bool TryParseName<TEnum>(string? value, out TEnum result) where TEnum : struct, Enum
+    {
+        string? name = Enum.GetNames<TEnum>().FirstOrDefault(name => string.Equals(name, value?.Trim(), StringComparison.OrdinalIgnoreCase));
+        result = name is null ? default : Enum.Parse<TEnum>(name);
+        return name is not null;
+    }
+
+    public static HttpResponseData TextResponse(HttpRequestData req, HttpStatusCode statusCode, string text)
+    {
+        var response = req.CreateResponse(statusCode);
+        response.Headers.Add("Content-Type", "text/plain; charset=utf-8");
+        response.WriteString(text);
+        return response;
+    }
+
+    public static IActionResult TextResult(HttpStatusCode statusCode, string text) =>
+        new ContentResult { StatusCode = (int)statusCode, ContentType = "text/plain; charset=utf-8", Content = text };
+
+    /// <summary>
+    /// The ASP.NET Core response behind <paramref name="req"/>. Unlike <see cref="HttpResponseData"/>, whose body
+    /// the worker buffers until the function returns, its body reaches the caller as it is written and flushed.
+    /// Functions writing to it return <see cref="EmptyResult"/>. <paramref name="allowSynchronousIO"/> is for
+    /// writers such as PDFDoc.Save and ZipArchive that write synchronously.
+    /// </summary>
+    public static HttpResponse GetStreamingResponse(HttpRequestData req, bool allowSynchronousIO = false)
+    {
+        HttpContext context = req.FunctionContext.GetHttpContext()
+            ?? throw new InvalidOperationException("Streaming responses need the ASP.NET Core integration (ConfigureFunctionsWebApplication).");
+        if (allowSynchronousIO && context.Features.Get<IHttpBodyControlFeature>() is IHttpBodyControlFeature bodyControl)
+            bodyControl.AllowSynchronousIO = true;
+        return context.Response;
+    }
+}
@@ -5,4 +5,16 @@ public class ApryseOptions
     public static readonly string OPTIONS_NAME = "Apryse";
 
     public string? Key { get; set; }
+
+    // Folders PDFNet searches for resources (fonts, CMaps, conversion modules).
+    public string[]? ResourceSearchPaths { get; set; }
+
+    // Font name -> font file substitutions registered once at start-up.
+    public Dictionary<string, string>? FontSubstitutions { get; set; }
+
+    // Builds a throw-away document at start-up so the first request does not pay for font loading.
+    public bool WarmUp { get; set; } = true;
+
+    // How long shutdown waits for in-flight requests before terminating the runtime.
+    public TimeSpan ShutdownTimeout { get; set; } = TimeSpan.FromSeconds(30);
 }
@@ -0,0 +1,16 @@
+namespace PDFFunctions.Options;
+
+public class ConvertOptions
+{
+    public static readonly string OPTIONS_NAME = "Convert";
+
+    // Number of files converted at the same time. Defaults to one worker per core.
+    public int? MaxDegreeOfParallelism { get; set; }
+
+    // Files waiting for a free worker. Producers block once the queue is full.
+    public int? QueueCapacity { get; set; }
+
+    // Budget for a single file, for every format. Office conversions are cancelled; other conversions are
+    // left to finish in the background with their result dropped, and the worker moves on.
+    public TimeSpan FileTimeout { get; set; } = TimeSpan.FromMinutes(5);
+}
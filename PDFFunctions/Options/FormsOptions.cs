@@ -0,0 +1,23 @@
+namespace PDFFunctions.Options;
+
+public class FormsOptions
+{
+    public static readonly string OPTIONS_NAME = "Forms";
+
+    public string TemplatePath { get; set; } = @"C:\Temp\Test.pdf";
+
+    // Number of parsed templates kept in memory. The least recently used one is evicted first.
+    public int TemplateCacheSize { get; set; } = 10;
+
+    public AppearanceStrategy AppearanceStrategy { get; set; } = AppearanceStrategy.Immediate;
+}
+
+public enum AppearanceStrategy
+{
+    // Regenerate each field's appearance right after its value is set.
+    Immediate,
+    // Regenerate all appearances in one pass after all values are set.
+    Batched,
+    // Only flag the form with NeedAppearances and let the viewer render the fields.
+    NeedAppearances
+}
@@ -0,0 +1,24 @@
+namespace PDFFunctions.Options;
+
+public class RenderOptions
+{
+    public static readonly string OPTIONS_NAME = "Render";
+
+    // Pages rendered at the same time. Defaults to one renderer per core.
+    public int? MaxDegreeOfParallelism { get; set; }
+
+    // Upper bound for rendered images kept in memory.
+    public long MemoryCacheBytes { get; set; } = 256L * 1024 * 1024;
+
+    // Renderers kept with a parsed page of an open document, see PageRenderer.CacheDisplayLists.
+    public int DisplayListCacheSize { get; set; } = 16;
+
+    // Documents RenderTile keeps open between requests, by content hash.
+    public int TileDocumentCacheSize { get; set; } = 4;
+
+    // Folder for the on-disk render cache. The disk tier is disabled when empty.
+    public string? CacheDirectory { get; set; }
+
+    // Upper bound for the on-disk render cache. The least recently used entries are deleted first.
+    public long DiskCacheBytes { get; set; } = 4L * 1024 * 1024 * 1024;
+}
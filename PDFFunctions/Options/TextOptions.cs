@@ -0,0 +1,21 @@
+namespace PDFFunctions.Options;
+
+public class TextOptions
+{
+    public static readonly string OPTIONS_NAME = "Text";
+
+    // Pages extracted at the same time. Defaults to one extractor per core.
+    public int? MaxDegreeOfParallelism { get; set; }
+
+    // Page text layers kept in memory.
+    public int TextLayerCacheSize { get; set; } = 256;
+
+    // Folder where every page text layer is also stored, one subfolder per document. Layers are kept in memory only when empty.
+    public string? TextLayerDirectory { get; set; }
+
+    // Folder of the full-text index. Indexing and index search are disabled when empty.
+    public string? IndexDirectory { get; set; }
+
+    // Newly indexed documents kept in segments of their own before they are merged into the main index file.
+    public int IndexMergeThreshold { get; set; } = 64;
+}
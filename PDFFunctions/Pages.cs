@@ -0,0 +1,346 @@
+using Microsoft.AspNetCore.Http;
+using Microsoft.AspNetCore.Mvc;
+using Microsoft.Azure.Functions.Worker;
+using Microsoft.Azure.Functions.Worker.Http;
+using Microsoft.Extensions.Logging;
+using PDFFunctions.Services;
+using PDFFunctions.Services.Rendering;
+using pdftron.PDF;
+using System.Globalization;
+using System.IO.Compression;
+using System.Net;
+using System.Text;
+using static PDFFunctions.HttpHelpers;
+
+namespace PDFFunctions;
+
+public class Pages
+{
+    private readonly ILogger logger;
+    private readonly PDFNetRuntime runtime;
+    private readonly PageRenderer renderer;
+    private readonly TileRenderer tileRenderer;
+    private readonly RenderCache renderCache;
+    private readonly DocumentExporter exporter;
+    private readonly RenderScheduler scheduler;
+    private const string PROGRESSIVE_BOUNDARY = "render-pass";
+
+    private readonly string inputPath = @"..\..\..\..\sample\input";
+
+    public Pages(ILoggerFactory loggerFactory, PDFNetRuntime runtime, PageRenderer renderer, TileRenderer tileRenderer,
+        RenderCache renderCache, DocumentExporter exporter, RenderScheduler scheduler)
+    {
+        this.runtime = runtime;
+        this.renderer = renderer;
+        this.tileRenderer = tileRenderer;
+        this.renderCache = renderCache;
+        this.exporter = exporter;
+        this.scheduler = scheduler;
+        logger = loggerFactory.CreateLogger<Pages>();
+    }
+
+    [Function(nameof(RenderPages))]
+    public async Task<HttpResponseData> RenderPages(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(RenderPages))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(RenderPages)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+
+        var settings = GetRenderSettings(req);
+        if (settings.Validate() is string invalid)
+            return TextResponse(req, HttpStatusCode.BadRequest, invalid);
+        int firstPage = GetInt(req, "first") ?? 1;
+        int lastPage = GetInt(req, "last") ?? int.MaxValue;
+
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        response.Headers.Add("Content-Type", "application/zip");
+        response.Headers.Add("Content-Disposition", $"attachment; filename={Path.GetFileNameWithoutExtension(file)}.zip");
+        using (runtime.Acquire())
+        using (PDFDoc doc = new(file))
+        {
+            doc.InitSecurityHandler();
+            // Pages already rendered with the same settings come from the render cache.
+            // Whole documents are backfills unless the caller says otherwise; pages never supersede each other.
+            var job = GetRenderJob(req, RenderPriority.Bulk) with { SupersedeKey = null };
+            await exporter.ExportZipAsync(doc, settings, response.Body, firstPage, lastPage,
+                renderCache.GetDocumentHash(file), job, req.FunctionContext.CancellationToken);
+        }
+        return response;
+    }
+
+    [Function(nameof(RenderSizes))]
+    public async Task<HttpResponseData> RenderSizes(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(RenderSizes))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(RenderSizes)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+
+        var sizes = new List<(int Width, int Height)>();
+        foreach (string size in (req.Query["sizes"] ?? "1000x1000,200x400,50x50").Split(',', StringSplitOptions.RemoveEmptyEntries | StringSplitOptions.TrimEntries))
+        {
+            string[] parts = size.Split('x');
+            if (parts.Length != 2 || !int.TryParse(parts[0], out int width) || !int.TryParse(parts[1], out int height)
+                || width < 1 || height < 1 || width > RenderSettings.MAX_IMAGE_SIZE || height > RenderSettings.MAX_IMAGE_SIZE)
+                return TextResponse(req, HttpStatusCode.BadRequest, $"Invalid size '{size}', expected WIDTHxHEIGHT of at most {RenderSettings.MAX_IMAGE_SIZE} pixels each.");
+            sizes.Add((width, height));
+        }
+
+        int pageNumber = GetInt(req, "page") ?? 1;
+        var settings = GetRenderSettings(req);
+        if (settings.Validate() is string invalid)
+            return TextResponse(req, HttpStatusCode.BadRequest, invalid);
+        IReadOnlyList<RenderedPage> pages;
+        using (runtime.Acquire())
+        using (PDFDoc doc = new(file))
+        {
+            doc.InitSecurityHandler();
+            if (pageNumber < 1 || pageNumber > doc.GetPageCount())
+                return TextResponse(req, HttpStatusCode.NotFound, "Page not found.");
+            var variants = sizes.Select(size => settings with { Width = size.Width, Height = size.Height }).ToList();
+            pages = await scheduler.ScheduleAsync(GetRenderJob(req, RenderPriority.Interactive) with { SupersedeKey = null },
+                token => renderer.RenderVariantsAsync(doc, pageNumber, variants, token), req.FunctionContext.CancellationToken);
+        }
+
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        response.Headers.Add("Content-Type", "application/zip");
+        response.Headers.Add("Content-Disposition", $"attachment; filename={Path.GetFileNameWithoutExtension(file)}_page_{pageNumber}.zip");
+        using (var archive = new ZipArchive(response.Body, ZipArchiveMode.Create, leaveOpen: true))
+        {
+            for (int i = 0; i < pages.Count; i++)
+            {
+                await using Stream entry = archive.CreateEntry($"page_{pageNumber}_{sizes[i].Width}x{sizes[i].Height}.{DocumentExporter.GetExtension(pages[i].Format)}", CompressionLevel.NoCompression).Open();
+                await entry.WriteAsync(pages[i].Image);
+            }
+        }
+        return response;
+    }
+
+    [Function(nameof(RenderProgressive))]
+    public async Task<IActionResult> RenderProgressive(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(RenderProgressive))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(RenderProgressive)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResult(HttpStatusCode.NotFound, "Input file not found.");
+
+        var previewScales = new List<double>();
+        foreach (string value in (req.Query["previews"] ?? "").Split(',', StringSplitOptions.RemoveEmptyEntries | StringSplitOptions.TrimEntries))
+        {
+            if (!double.TryParse(value, NumberStyles.Float, CultureInfo.InvariantCulture, out double scale) || scale <= 0 || scale >= 1)
+                return TextResult(HttpStatusCode.BadRequest, $"Invalid preview scale '{value}', expected a number between 0 and 1.");
+            previewScales.Add(scale);
+        }
+
+        int pageNumber = GetInt(req, "page") ?? 1;
+        var settings = GetRenderSettings(req);
+        if (settings.Validate() is string invalid)
+            return TextResult(HttpStatusCode.BadRequest, invalid);
+        // Written and flushed part by part, so the caller sees the preview before the final render is done.
+        HttpResponse response = GetStreamingResponse(req);
+        try
+        {
+            using (runtime.Acquire())
+            using (PDFDoc doc = new(file))
+            {
+                doc.InitSecurityHandler();
+                if (pageNumber < 1 || pageNumber > doc.GetPageCount())
+                    return TextResult(HttpStatusCode.NotFound, "Page not found.");
+                await scheduler.ScheduleAsync(GetRenderJob(req, RenderPriority.Interactive),
+                    token => renderer.RenderProgressiveAsync(doc, pageNumber, settings, pass => WritePassAsync(response, pass, token),
+                        previewScales.Count > 0 ? previewScales : null, token),
+                    req.FunctionContext.CancellationToken);
+            }
+            await response.Body.WriteAsync(Encoding.ASCII.GetBytes($"--{PROGRESSIVE_BOUNDARY}--\r\n"));
+            return new EmptyResult();
+        }
+        catch (OperationCanceledException) when (!req.FunctionContext.CancellationToken.IsCancellationRequested)
+        {
+            // Once a preview has been sent the status is out; the superseded stream just ends without a final part.
+            return response.HasStarted ? new EmptyResult() : TextResult(HttpStatusCode.Conflict, "Superseded by a newer request.");
+        }
+    }
+
+    private static async Task WritePassAsync(HttpResponse response, RenderPass pass, CancellationToken cancellationToken)
+    {
+        if (!response.HasStarted)
+        {
+            // Each pass is one part and replaces the previous one, as browsers do for multipart/x-mixed-replace images.
+            response.StatusCode = (int)HttpStatusCode.OK;
+            response.ContentType = $"multipart/x-mixed-replace; boundary={PROGRESSIVE_BOUNDARY}";
+        }
+        string headers = $"--{PROGRESSIVE_BOUNDARY}\r\n"
+            + $"Content-Type: {GetContentType(pass.Page.Format)}\r\n"
+            + $"Content-Length: {pass.Page.Image.Length.ToString(CultureInfo.InvariantCulture)}\r\n"
+            + $"X-Pass: {pass.Index.ToString(CultureInfo.InvariantCulture)}\r\n"
+            + $"X-Final: {(pass.IsFinal ? "true" : "false")}\r\n\r\n";
+        await response.Body.WriteAsync(Encoding.ASCII.GetBytes(headers), cancellationToken);
+        await response.Body.WriteAsync(pass.Page.Image, cancellationToken);
+        await response.Body.WriteAsync("\r\n"u8.ToArray(), cancellationToken);
+        await response.Body.FlushAsync(cancellationToken);
+    }
+
+    private static string GetContentType(string format) => format switch
+    {
+        "JPEG" => "image/jpeg",
+        "TIFF" => "image/tiff",
+        "RAW" => "application/octet-stream",
+        _ => "image/" + format.ToLowerInvariant()
+    };
+
+    [Function(nameof(ExportTiff))]
+    public async Task<HttpResponseData> ExportTiff(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(ExportTiff))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(ExportTiff)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+        var settings = GetRenderSettings(req);
+        if (settings.Validate() is string invalid)
+            return TextResponse(req, HttpStatusCode.BadRequest, invalid);
+
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        response.Headers.Add("Content-Type", "image/tiff");
+        response.Headers.Add("Content-Disposition", $"attachment; filename={Path.GetFileNameWithoutExtension(file)}.tif");
+        using (runtime.Acquire())
+        using (PDFDoc doc = new(file))
+        {
+            doc.InitSecurityHandler();
+            // Whole-document exports are backfills unless the caller says otherwise.
+            var job = GetRenderJob(req, RenderPriority.Bulk) with { SupersedeKey = null };
+            await exporter.ExportTiffAsync(doc, settings, response.Body, job, req.FunctionContext.CancellationToken);
+        }
+        return response;
+    }
+
+    [Function(nameof(RenderSeparations))]
+    public async Task<HttpResponseData> RenderSeparations(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(RenderSeparations))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(RenderSeparations)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+
+        var settings = GetRenderSettings(req);
+        if (settings.Validate() is string invalid)
+            return TextResponse(req, HttpStatusCode.BadRequest, invalid);
+        bool includeComposite = !string.Equals(req.Query["composite"], "false", StringComparison.OrdinalIgnoreCase);
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        response.Headers.Add("Content-Type", "application/zip");
+        response.Headers.Add("Content-Disposition", $"attachment; filename={Path.GetFileNameWithoutExtension(file)}_separations.zip");
+        using (runtime.Acquire())
+        using (PDFDoc doc = new(file))
+        {
+            doc.InitSecurityHandler();
+            var job = GetRenderJob(req, RenderPriority.Bulk) with { SupersedeKey = null };
+            await exporter.ExportSeparationsAsync(doc, settings, response.Body, includeComposite, job, req.FunctionContext.CancellationToken);
+        }
+        return response;
+    }
+
+    [Function(nameof(RenderTile))]
+    public async Task<HttpResponseData> RenderTile(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(RenderTile))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(RenderTile)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+
+        int pageNumber = GetInt(req, "page") ?? 1;
+        double zoom = GetDouble(req, "zoom") ?? 1;
+        int tileSize = GetInt(req, "size") ?? 256;
+        int column = GetInt(req, "column") ?? 0;
+        int row = GetInt(req, "row") ?? 0;
+        if (tileSize < 1 || tileSize > TileRenderer.MAX_TILE_SIZE)
+            return TextResponse(req, HttpStatusCode.BadRequest, $"size must be between 1 and {TileRenderer.MAX_TILE_SIZE}.");
+        if (!(zoom > 0 && zoom <= TileRenderer.MAX_ZOOM))
+            return TextResponse(req, HttpStatusCode.BadRequest, $"zoom must be above 0 and at most {TileRenderer.MAX_ZOOM}.");
+
+        try
+        {
+            RenderedTile rendered;
+            // The document stays open between tile requests, so its parsed pages are reused across tiles.
+            using (runtime.Acquire())
+            using (DocumentLease lease = tileRenderer.OpenDocument(file))
+            {
+                PDFDoc doc = lease.Doc;
+                doc.LockRead();
+                int pageCount;
+                try
+                {
+                    pageCount = doc.GetPageCount();
+                }
+                finally
+                {
+                    doc.UnlockRead();
+                }
+                if (pageNumber < 1 || pageNumber > pageCount)
+                    return TextResponse(req, HttpStatusCode.NotFound, "Page not found.");
+                TileGrid grid = TileRenderer.GetGrid(doc, pageNumber, zoom, tileSize);
+                if (column < 0 || row < 0 || column >= grid.Columns || row >= grid.Rows)
+                    return TextResponse(req, HttpStatusCode.NotFound, "Tile not found.");
+                rendered = await scheduler.ScheduleAsync(GetRenderJob(req, RenderPriority.Interactive),
+                    token => tileRenderer.RenderTileAsync(doc, pageNumber, grid, column, row, zoom, token), req.FunctionContext.CancellationToken);
+            }
+
+            // Raw BGRA pixels, straight (not premultiplied) alpha, rows of width * 4 bytes.
+            Tile tile = rendered.Tile;
+            var response = req.CreateResponse(HttpStatusCode.OK);
+            response.Headers.Add("Content-Type", "application/octet-stream");
+            response.Headers.Add("X-Tile-Width", tile.Width.ToString(CultureInfo.InvariantCulture));
+            response.Headers.Add("X-Tile-Height", tile.Height.ToString(CultureInfo.InvariantCulture));
+            await response.Body.WriteAsync(rendered.Pixels.AsMemory(0, tile.Width * tile.Height * TileRenderer.BYTES_PER_PIXEL));
+            return response;
+        }
+        catch (OperationCanceledException) when (!req.FunctionContext.CancellationToken.IsCancellationRequested)
+        {
+            return TextResponse(req, HttpStatusCode.Conflict, "Superseded by a newer request.");
+        }
+    }
+
+    /// <summary>
+    /// Reads <c>tenant</c>, <c>priority</c> (interactive or bulk) and <c>viewer</c>. A viewer's newer
+    /// request supersedes its older one that is still queued or running.
+    /// </summary>
+    private static RenderJob GetRenderJob(HttpRequestData req, RenderPriority defaultPriority)
+    {
+        string tenant = req.Query["tenant"] is { Length: > 0 } name ? name : "default";
+        RenderPriority priority = TryParseName(req.Query["priority"], out RenderPriority requested) ? requested : defaultPriority;
+        string? viewer = req.Query["viewer"];
+        return new RenderJob(tenant, priority, string.IsNullOrEmpty(viewer) ? null : $"{tenant}/{viewer}");
+    }
+
+    private static RenderSettings GetRenderSettings(HttpRequestData req)
+    {
+        return new RenderSettings
+        {
+            Dpi = GetDouble(req, "dpi") ?? 92,
+            Width = GetInt(req, "width"),
+            Height = GetInt(req, "height"),
+            ImageSmoothing = !string.Equals(req.Query["smoothing"], "false", StringComparison.OrdinalIgnoreCase),
+            Format = req.Query["format"]?.ToUpperInvariant() ?? "PNG",
+            ColorSpace = req.Query["colorspace"],
+            BitsPerComponent = GetInt(req, "bpc"),
+            Quality = GetInt(req, "quality")
+        };
+    }
+
+    private static int? GetInt(HttpRequestData req, string name) =>
+        int.TryParse(req.Query[name], NumberStyles.Integer, CultureInfo.InvariantCulture, out int value) ? value : null;
+
+    private static double? GetDouble(HttpRequestData req, string name) =>
+        double.TryParse(req.Query[name], NumberStyles.Float, CultureInfo.InvariantCulture, out double value) ? value : null;
+}
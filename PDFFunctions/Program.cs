@@ -1,17 +1,51 @@
 using Microsoft.Azure.Functions.Worker;
 using Microsoft.Extensions.DependencyInjection;
 using Microsoft.Extensions.Hosting;
+using Microsoft.Extensions.Logging;
 using PDFFunctions.Options;
+using PDFFunctions.Services;
+using PDFFunctions.Services.Rendering;
+using PDFFunctions.Services.Text;
 
+// The ASP.NET Core integration sends response bodies as they are written, which streaming functions rely on.
 var host = new HostBuilder()
-    .ConfigureFunctionsWorkerDefaults()
+    .ConfigureFunctionsWebApplication()
     .ConfigureServices((builderContext, services) =>
     {
         var configuration = builderContext.Configuration;
         services.AddApplicationInsightsTelemetryWorkerService();
         services.ConfigureFunctionsApplicationInsights();
         services.Configure<ApryseOptions>(configuration.GetSection(ApryseOptions.OPTIONS_NAME));
+        services.Configure<ConvertOptions>(configuration.GetSection(ConvertOptions.OPTIONS_NAME));
+        services.Configure<FormsOptions>(configuration.GetSection(FormsOptions.OPTIONS_NAME));
+        services.Configure<RenderOptions>(configuration.GetSection(RenderOptions.OPTIONS_NAME));
+        services.Configure<TextOptions>(configuration.GetSection(TextOptions.OPTIONS_NAME));
+        services.AddSingleton<PDFNetRuntime>();
+        services.AddSingleton<DocumentHasher>();
+        services.AddSingleton<ConversionEngine>();
+        services.AddSingleton<TemplateCache>();
+        services.AddSingleton<FormFiller>();
+        services.AddSingleton<PageRenderer>();
+        services.AddSingleton<TileRenderer>();
+        services.AddSingleton<RenderCache>();
+        services.AddSingleton<RenderScheduler>();
+        services.AddSingleton<DocumentExporter>();
+        services.AddSingleton<DocumentTextExtractor>();
+        services.AddSingleton<TextIndex>();
+        services.AddSingleton<TextLayerCache>();
     })
     .Build();
 
+// Pay the PDFNet start-up cost before the first request arrives. A failure does not stop the host: it is logged
+// here, reported by the Health function, and initialization is tried again on the next request.
+try
+{
+    host.Services.GetRequiredService<PDFNetRuntime>().EnsureInitialized();
+}
+catch (Exception e)
+{
+    host.Services.GetRequiredService<ILoggerFactory>().CreateLogger("Startup")
+        .LogWarning("Exception caught initializing PDFNet at startup, the host starts without it:\n{0}", e);
+}
+
 host.Run();
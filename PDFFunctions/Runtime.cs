@@ -0,0 +1,32 @@
+using Microsoft.Azure.Functions.Worker;
+using Microsoft.Azure.Functions.Worker.Http;
+using Microsoft.Extensions.Logging;
+using PDFFunctions.Services;
+using System.Net;
+
+namespace PDFFunctions;
+
+public class Runtime
+{
+    private readonly ILogger logger;
+    private readonly PDFNetRuntime runtime;
+
+    public Runtime(ILoggerFactory loggerFactory, PDFNetRuntime runtime)
+    {
+        this.runtime = runtime;
+        logger = loggerFactory.CreateLogger<Runtime>();
+    }
+
+    [Function(nameof(Health))]
+    public async Task<HttpResponseData> Health(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(Health))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(Health)} processed a request.");
+        RuntimeHealth health = runtime.GetHealth();
+
+        var response = req.CreateResponse(health.IsHealthy ? HttpStatusCode.OK : HttpStatusCode.ServiceUnavailable);
+        await response.WriteAsJsonAsync(health, response.StatusCode);
+        return response;
+    }
+}
@@ -0,0 +1,252 @@
+using Microsoft.Extensions.Logging;
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron.PDF;
+using System.Diagnostics;
+using System.Threading.Channels;
+
+namespace PDFFunctions.Services;
+
+/// <summary>
+/// Converts files to PDF on a bounded pool of workers. Each converted document is handed,
+/// still in memory, to a caller supplied stage running on the same worker.
+/// </summary>
+public sealed class ConversionEngine
+{
+    private static readonly HashSet<string> OFFICE_EXTENSIONS = new(StringComparer.OrdinalIgnoreCase)
+    {
+        ".doc", ".docx", ".xls", ".xlsx", ".ppt", ".pptx", ".rtf", ".odt", ".ods", ".odp"
+    };
+
+    private readonly ILogger logger;
+    private readonly ConvertOptions options;
+
+    public ConversionEngine(ILoggerFactory loggerFactory, IOptions<ConvertOptions> options)
+    {
+        this.options = options.Value;
+        logger = loggerFactory.CreateLogger<ConversionEngine>();
+    }
+
+    public int MaxDegreeOfParallelism => Math.Max(1, options.MaxDegreeOfParallelism ?? Environment.ProcessorCount);
+
+    /// <summary>
+    /// Converts every file and runs <paramref name="stage"/> on the resulting document.
+    /// Results are returned in input order; a failing file never stops the batch.
+    /// </summary>
+    public async Task<IReadOnlyList<ConversionResult>> ConvertAsync(IEnumerable<string> files, Action<string, PDFDoc> stage, CancellationToken cancellationToken = default)
+    {
+        int workers = MaxDegreeOfParallelism;
+        var queue = Channel.CreateBounded<(int Index, string File)>(new BoundedChannelOptions(Math.Max(1, options.QueueCapacity ?? workers * 2))
+        {
+            FullMode = BoundedChannelFullMode.Wait,
+            SingleWriter = true
+        });
+        var results = new List<ConversionResult?>();
+
+        var consumers = Enumerable.Range(0, workers)
+            .Select(_ => Task.Run(async () =>
+            {
+                await foreach (var (index, file) in queue.Reader.ReadAllAsync(cancellationToken))
+                {
+                    var result = ConvertFile(file, stage, cancellationToken);
+                    lock (results)
+                        results[index] = result;
+                }
+            }, cancellationToken))
+            .ToArray();
+
+        try
+        {
+            int next = 0;
+            foreach (var file in files)
+            {
+                lock (results)
+                    results.Add(null);
+                // Waits here while every worker is busy and the queue is full.
+                await queue.Writer.WriteAsync((next++, file), cancellationToken);
+            }
+        }
+        finally
+        {
+            queue.Writer.Complete();
+        }
+        await Task.WhenAll(consumers);
+
+        return results.Select(r => r!).ToList();
+    }
+
+    /// <summary>
+    /// Runs <paramref name="prepare"/> for every input on the worker pool and hands the results to
+    /// <paramref name="assemble"/> on the calling thread, strictly in input order. At most
+    /// QueueCapacity prepared results are kept waiting ahead of the assembly.
+    /// </summary>
+    public Task PrepareInOrderAsync<TInput, T>(IReadOnlyList<TInput> inputs, Func<TInput, T> prepare, Action<T> assemble, CancellationToken cancellationToken = default)
+        where T : IDisposable
+        => PrepareInOrderAsync(ReadAll(inputs), prepare, assemble, cancellationToken);
+
+    /// <summary>
+    /// Streaming variant of <see cref="PrepareInOrderAsync{TInput, T}(IReadOnlyList{TInput}, Func{TInput, T}, Action{T}, CancellationToken)"/>:
+    /// inputs are only read as the window allows, so at most QueueCapacity of them are held at once.
+    /// An exception thrown while reading the inputs is rethrown once the inputs read before it are assembled.
+    /// </summary>
+    public async Task PrepareInOrderAsync<TInput, T>(IAsyncEnumerable<TInput> inputs, Func<TInput, T> prepare, Action<T> assemble, CancellationToken cancellationToken = default)
+        where T : IDisposable
+    {
+        int workers = MaxDegreeOfParallelism;
+        var window = new SemaphoreSlim(Math.Max(workers, options.QueueCapacity ?? workers * 2));
+        var queue = Channel.CreateUnbounded<(TInput Input, TaskCompletionSource<T> Slot)>(new UnboundedChannelOptions { SingleWriter = true });
+        // Slots in input order; the producer is the only writer and the assembly the only reader.
+        var order = Channel.CreateUnbounded<TaskCompletionSource<T>>(new UnboundedChannelOptions { SingleWriter = true, SingleReader = true });
+        using var stop = CancellationTokenSource.CreateLinkedTokenSource(cancellationToken);
+
+        var producer = Task.Run(async () =>
+        {
+            Exception? error = null;
+            try
+            {
+                await foreach (var input in inputs.WithCancellation(stop.Token))
+                {
+                    // Back-pressure: do not read further until an earlier input has been assembled.
+                    await window.WaitAsync(stop.Token);
+                    var slot = new TaskCompletionSource<T>(TaskCreationOptions.RunContinuationsAsynchronously);
+                    await order.Writer.WriteAsync(slot, stop.Token);
+                    await queue.Writer.WriteAsync((input, slot), stop.Token);
+                }
+            }
+            catch (Exception e) when (!stop.IsCancellationRequested)
+            {
+                error = e;
+            }
+            finally
+            {
+                queue.Writer.Complete();
+                order.Writer.Complete(error);
+            }
+        }, stop.Token);
+
+        var consumers = Enumerable.Range(0, workers)
+            .Select(_ => Task.Run(async () =>
+            {
+                await foreach (var (input, slot) in queue.Reader.ReadAllAsync(stop.Token))
+                {
+                    try
+                    {
+                        slot.SetResult(prepare(input));
+                    }
+                    catch (Exception e)
+                    {
+                        slot.SetException(e);
+                    }
+                }
+            }, stop.Token))
+            .ToArray();
+
+        TaskCompletionSource<T>? pending = null;
+        try
+        {
+            await foreach (var slot in order.Reader.ReadAllAsync(stop.Token))
+            {
+                pending = slot;
+                T prepared = await slot.Task.WaitAsync(stop.Token);
+                pending = null;
+                using (prepared)
+                    assemble(prepared);
+                window.Release();
+            }
+        }
+        finally
+        {
+            stop.Cancel();
+            try
+            {
+                await Task.WhenAll(consumers.Append(producer));
+            }
+            catch (OperationCanceledException)
+            {
+            }
+
+            // Release whatever was prepared but never assembled.
+            if (pending?.Task.IsCompletedSuccessfully == true)
+                pending.Task.Result.Dispose();
+            while (order.Reader.TryRead(out var slot))
+            {
+                if (slot.Task.IsCompletedSuccessfully)
+                    slot.Task.Result.Dispose();
+            }
+        }
+    }
+
+    private static async IAsyncEnumerable<TInput> ReadAll<TInput>(IReadOnlyList<TInput> inputs)
+    {
+        foreach (var input in inputs)
+            yield return input;
+        await Task.CompletedTask;
+    }
+
+    private ConversionResult ConvertFile(string file, Action<string, PDFDoc> stage, CancellationToken cancellationToken)
+    {
+        var stopwatch = Stopwatch.StartNew();
+        using var timeout = CancellationTokenSource.CreateLinkedTokenSource(cancellationToken);
+        timeout.CancelAfter(options.FileTimeout);
+        PDFDoc doc = new();
+        Task? abandoned = null;
+        try
+        {
+            if (!ToPdf(doc, file, timeout.Token, out abandoned))
+                return new ConversionResult(file, false, stopwatch.Elapsed, "Conversion cancelled or timed out.");
+
+            // The stage itself cannot be interrupted, so check the budget before starting it.
+            if (timeout.IsCancellationRequested)
+                return new ConversionResult(file, false, stopwatch.Elapsed, "Conversion timed out.");
+
+            stage(file, doc);
+            return new ConversionResult(file, true, stopwatch.Elapsed, null);
+        }
+        catch (Exception e)
+        {
+            logger.LogInformation("Exception caught converting {0}:\n{1}", file, e);
+            return new ConversionResult(file, false, stopwatch.Elapsed, e.Message);
+        }
+        finally
+        {
+            // A conversion still running in the background owns the document until it finishes.
+            if (abandoned is null)
+                doc.Dispose();
+            else
+                abandoned.ContinueWith(_ => doc.Dispose(), TaskScheduler.Default);
+        }
+    }
+
+    /// <summary>
+    /// Office conversions are cancelled in place. Other formats go through Convert.ToPdf, which cannot be
+    /// interrupted: on timeout the worker gives up on it and <paramref name="abandoned"/> is the conversion
+    /// still running in the background, whose result is dropped.
+    /// </summary>
+    private static bool ToPdf(PDFDoc doc, string file, CancellationToken cancellationToken, out Task? abandoned)
+    {
+        abandoned = null;
+        if (!OFFICE_EXTENSIONS.Contains(Path.GetExtension(file)))
+        {
+            Task conversion = Task.Run(() => pdftron.PDF.Convert.ToPdf(doc, file));
+            try
+            {
+                conversion.WaitAsync(cancellationToken).GetAwaiter().GetResult();
+                return true;
+            }
+            catch (OperationCanceledException) when (cancellationToken.IsCancellationRequested)
+            {
+                abandoned = conversion;
+                return false;
+            }
+        }
+
+        using DocumentConversion officeConversion = pdftron.PDF.Convert.StreamingPDFConversion(doc, file, null);
+        using (cancellationToken.Register(officeConversion.CancelConversion))
+        {
+            return officeConversion.TryConvert() == DocumentConversionResult.e_document_conversion_success
+                && !officeConversion.IsCancelled();
+        }
+    }
+}
+
+public record ConversionResult(string File, bool Succeeded, TimeSpan Elapsed, string? Error);
@@ -0,0 +1,55 @@
+using System.Security.Cryptography;
+
+namespace PDFFunctions.Services;
+
+/// <summary>
+/// Identifies documents by content, so caches and indexes survive renames and notice edits.
+/// </summary>
+public sealed class DocumentHasher
+{
+    // Paths remembered; the least recently used path is forgotten first.
+    private const int CAPACITY = 4096;
+
+    private readonly object sync = new();
+    private readonly Dictionary<string, LinkedListNode<Entry>> entries = new(StringComparer.Ordinal);
+    private readonly LinkedList<Entry> lru = new();
+
+    /// <summary>
+    /// SHA-256 of the file content, remembered per path, size and modification time.
+    /// </summary>
+    public string GetHash(string file)
+    {
+        var info = new FileInfo(file);
+        lock (sync)
+        {
+            if (entries.TryGetValue(info.FullName, out var node)
+                && node.Value.LastWriteTimeUtc == info.LastWriteTimeUtc && node.Value.Length == info.Length)
+            {
+                lru.Remove(node);
+                lru.AddFirst(node);
+                return node.Value.Hash;
+            }
+        }
+
+        // Hashed outside the lock; two requests racing on a new file both hash it and store the same value.
+        string hash;
+        using (var stream = info.OpenRead())
+            hash = Convert.ToHexString(SHA256.HashData(stream));
+
+        lock (sync)
+        {
+            // A changed file replaces the entry of its previous content.
+            if (entries.Remove(info.FullName, out var previous))
+                lru.Remove(previous);
+            entries.Add(info.FullName, lru.AddFirst(new Entry(info.FullName, info.LastWriteTimeUtc, info.Length, hash)));
+            while (entries.Count > CAPACITY)
+            {
+                entries.Remove(lru.Last!.Value.Path);
+                lru.RemoveLast();
+            }
+        }
+        return hash;
+    }
+
+    private sealed record Entry(string Path, DateTime LastWriteTimeUtc, long Length, string Hash);
+}
@@ -0,0 +1,50 @@
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron.PDF;
+
+namespace PDFFunctions.Services;
+
+/// <summary>
+/// Fills a copy of a template and generates field appearances according to the configured strategy.
+/// </summary>
+public sealed class FormFiller
+{
+    private readonly FormsOptions options;
+
+    public FormFiller(IOptions<FormsOptions> options)
+    {
+        this.options = options.Value;
+    }
+
+    public PDFDoc Fill(CompiledTemplate template, IReadOnlyDictionary<string, string> keyValuePairs)
+    {
+        AppearanceStrategy strategy = options.AppearanceStrategy;
+        TemplateCopy copy = template.Open();
+        PDFDoc doc = copy.Doc;
+        try
+        {
+            foreach (var keyValuePair in keyValuePairs)
+            {
+                Field? field = copy.GetField(keyValuePair.Key);
+                if (field is null)
+                    continue;
+                field.SetValue(keyValuePair.Value);
+                if (strategy == AppearanceStrategy.Immediate)
+                    field.RefreshAppearance();
+            }
+
+            // PDFNet's own generation in one pass, so Batched renders exactly like Immediate; fields
+            // share the form's font and DA resources from the AcroForm DR dictionary.
+            if (strategy == AppearanceStrategy.Batched)
+                doc.RefreshFieldAppearances();
+            else if (strategy == AppearanceStrategy.NeedAppearances)
+                doc.GetAcroForm()?.PutBool("NeedAppearances", true);
+            return doc;
+        }
+        catch
+        {
+            doc.Dispose();
+            throw;
+        }
+    }
+}
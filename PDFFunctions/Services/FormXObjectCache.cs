@@ -0,0 +1,151 @@
+using pdftron.Filters;
+using pdftron.PDF;
+using pdftron.SDF;
+using System.Globalization;
+using System.Security.Cryptography;
+using System.Text;
+
+namespace PDFFunctions.Services;
+
+/// <summary>
+/// Remembers the Form XObject created in a target document for each distinct source page,
+/// keyed by a hash of the page content, so identical pages are imported and placed only once.
+/// The same keying is used to share whole pages between identical letter pages.
+/// An instance is bound to one target document.
+/// </summary>
+public sealed class FormXObjectCache
+{
+    private readonly Dictionary<string, Obj> forms = new();
+
+    public int Hits { get; private set; }
+
+    public int Count => forms.Count;
+
+    public bool TryGetForm(string key, out Obj form)
+    {
+        if (forms.TryGetValue(key, out form!))
+        {
+            Hits++;
+            return true;
+        }
+        return false;
+    }
+
+    public bool Contains(string key) => forms.ContainsKey(key);
+
+    public void Add(string key, Obj form) => forms[key] = form;
+
+    /// <summary>
+    /// Object numbers of the cached forms, so a cache can be rebuilt after its document is reopened.
+    /// </summary>
+    public IEnumerable<KeyValuePair<string, int>> ObjectNumbers => forms.Select(pair => KeyValuePair.Create(pair.Key, pair.Value.GetObjNum()));
+
+    /// <summary>
+    /// Hashes what determines the rendered page: its boxes, rotation, content streams and the
+    /// full resource tree. Object numbers are ignored so the same page from two files matches.
+    /// Every token is written as a type tag and a length-prefixed value, so two different pages
+    /// cannot produce the same byte sequence.
+    /// </summary>
+    public static string ComputeKey(Page page)
+    {
+        using var hash = IncrementalHash.CreateHash(HashAlgorithmName.SHA256);
+        Rect media_box = page.GetMediaBox();
+        Rect crop_box = page.GetCropBox();
+        foreach (double value in new[] { media_box.x1, media_box.y1, media_box.x2, media_box.y2, crop_box.x1, crop_box.y1, crop_box.x2, crop_box.y2 })
+            AppendNumber(hash, value);
+        AppendNumber(hash, Page.RotationToDegree(page.GetRotation()));
+
+        var visited = new Dictionary<int, int>();
+        AppendToken(hash, 'k', "Contents");
+        AppendObj(hash, page.GetContents(), visited);
+        AppendToken(hash, 'k', "Resources");
+        AppendObj(hash, page.GetResourceDict(), visited);
+        return System.Convert.ToHexString(hash.GetHashAndReset());
+    }
+
+    private static void AppendObj(IncrementalHash hash, Obj? obj, Dictionary<int, int> visited)
+    {
+        if (obj is null)
+        {
+            AppendToken(hash, 'z', "");
+            return;
+        }
+
+        if (obj.IsIndirect())
+        {
+            // Shared objects are hashed once and then referenced by the order they were first seen.
+            if (visited.TryGetValue(obj.GetObjNum(), out int order))
+            {
+                AppendToken(hash, 'r', order.ToString(CultureInfo.InvariantCulture));
+                return;
+            }
+            visited[obj.GetObjNum()] = visited.Count;
+        }
+
+        switch (obj.GetType())
+        {
+            case Obj.ObjType.e_bool:
+                AppendToken(hash, 'b', obj.GetBool() ? "true" : "false");
+                break;
+            case Obj.ObjType.e_number:
+                AppendNumber(hash, obj.GetNumber());
+                break;
+            case Obj.ObjType.e_name:
+                AppendToken(hash, 'n', obj.GetName());
+                break;
+            case Obj.ObjType.e_string:
+                AppendToken(hash, 's', obj.GetBuffer());
+                break;
+            case Obj.ObjType.e_array:
+                // The element count is part of the header, so nesting cannot be re-split either.
+                AppendToken(hash, 'a', obj.Size().ToString(CultureInfo.InvariantCulture));
+                for (int i = 0; i < obj.Size(); ++i)
+                    AppendObj(hash, obj.GetAt(i), visited);
+                break;
+            case Obj.ObjType.e_dict:
+            case Obj.ObjType.e_stream:
+                // Back links to the page tree do not affect the appearance.
+                var entries = new List<(string Key, Obj Value)>();
+                for (DictIterator itr = obj.GetDictIterator(); itr.HasNext(); itr.Next())
+                {
+                    string key = itr.Key().GetName();
+                    if (key != "Parent")
+                        entries.Add((key, itr.Value()));
+                }
+                AppendToken(hash, obj.IsStream() ? 'x' : 'd', entries.Count.ToString(CultureInfo.InvariantCulture));
+                foreach (var (key, value) in entries)
+                {
+                    AppendToken(hash, 'k', key);
+                    AppendObj(hash, value, visited);
+                }
+                if (obj.IsStream())
+                    AppendStream(hash, obj);
+                break;
+            default:
+                AppendToken(hash, 'z', "");
+                break;
+        }
+    }
+
+    // The stream length is not known up front, so the data goes in length-prefixed chunks ended by an empty one.
+    private static void AppendStream(IncrementalHash hash, Obj stream)
+    {
+        using FilterReader reader = new(stream.GetRawStream(true));
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = reader.Read(buffer)) > 0)
+            AppendToken(hash, 'c', buffer.AsSpan(0, read));
+        AppendToken(hash, 'c', ReadOnlySpan<byte>.Empty);
+    }
+
+    private static void AppendNumber(IncrementalHash hash, double value) => AppendToken(hash, 'f', value.ToString("R", CultureInfo.InvariantCulture));
+
+    private static void AppendToken(IncrementalHash hash, char tag, string value) => AppendToken(hash, tag, Encoding.UTF8.GetBytes(value));
+
+    // Writes <tag>:<length>: followed by the value bytes.
+    private static void AppendToken(IncrementalHash hash, char tag, ReadOnlySpan<byte> value)
+    {
+        hash.AppendData(Encoding.ASCII.GetBytes($"{tag}:{value.Length.ToString(CultureInfo.InvariantCulture)}:"));
+        hash.AppendData(value);
+    }
+}
@@ -0,0 +1,28 @@
+using pdftron.Filters;
+
+namespace PDFFunctions.Services;
+
+/// <summary>
+/// Helpers to move the content of a PDFNet output <see cref="MemoryFilter"/> into .NET streams.
+/// </summary>
+public static class MemoryFilters
+{
+    private const int CHUNK_SIZE = 64 * 1024;
+
+    public static void CopyTo(MemoryFilter filter, Stream output)
+    {
+        filter.SetAsInputFilter();
+        using FilterReader reader = new(filter);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = reader.Read(buffer)) > 0)
+            output.Write(buffer, 0, read);
+    }
+
+    public static byte[] ToArray(MemoryFilter filter)
+    {
+        using var output = new MemoryStream();
+        CopyTo(filter, output);
+        return output.ToArray();
+    }
+}
@@ -0,0 +1,34 @@
+namespace PDFFunctions.Services;
+
+/// <summary>
+/// Runs per-page work ahead of a sequential writer. At most <c>lookahead</c> pages are in flight,
+/// and results are handed to the writer in page order.
+/// </summary>
+public static class OrderedPipeline
+{
+    public static async Task RunAsync<T>(int firstPage, int lastPage, int lookahead, Func<int, Task<T>> produce, Func<T, Task> consume)
+    {
+        var window = new Queue<Task<T>>();
+        int next = firstPage;
+        try
+        {
+            while (next <= lastPage || window.Count > 0)
+            {
+                while (next <= lastPage && window.Count < lookahead)
+                    window.Enqueue(produce(next++));
+                await consume(await window.Dequeue());
+            }
+        }
+        finally
+        {
+            // Callers dispose the document once this returns, so every page still running must finish first.
+            try
+            {
+                await Task.WhenAll(window);
+            }
+            catch
+            {
+            }
+        }
+    }
+}
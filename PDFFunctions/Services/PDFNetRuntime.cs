@@ -0,0 +1,173 @@
+using Microsoft.Extensions.Logging;
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron;
+using pdftron.PDF;
+using pdftron.SDF;
+using System.Diagnostics;
+using System.Diagnostics.Metrics;
+
+namespace PDFFunctions.Services;
+
+/// <summary>
+/// Owns the process-wide PDFNet runtime. It is initialized once, shared by every invocation
+/// through refcounted leases and only terminated when the host shuts down with no lease left.
+/// </summary>
+public sealed class PDFNetRuntime : IDisposable
+{
+    public static readonly string METER_NAME = "PDFFunctions.PDFNet";
+    private static readonly string[] DEFAULT_RESOURCE_SEARCH_PATHS = [@"..\..\..\..\lib\"];
+
+    private readonly ILogger logger;
+    private readonly ApryseOptions options;
+    private readonly Meter meter;
+    private readonly Histogram<double> initDuration;
+    private readonly object sync = new();
+    private int leases;
+    private bool initialized;
+    private bool terminated;
+    private Exception? initError;
+
+    public PDFNetRuntime(ILoggerFactory loggerFactory, IOptions<ApryseOptions> options)
+    {
+        this.options = options.Value;
+        logger = loggerFactory.CreateLogger<PDFNetRuntime>();
+        meter = new Meter(METER_NAME);
+        initDuration = meter.CreateHistogram<double>("pdfnet.init.duration", "ms", "Time spent initializing and warming up PDFNet.");
+        meter.CreateObservableGauge("pdfnet.leases.active", () => Volatile.Read(ref leases), description: "Requests currently holding the PDFNet runtime.");
+    }
+
+    public TimeSpan InitDuration { get; private set; }
+
+    public int ActiveLeases => Volatile.Read(ref leases);
+
+    /// <summary>
+    /// Initializes the runtime on first use and keeps it alive until the returned lease is disposed.
+    /// </summary>
+    public IDisposable Acquire()
+    {
+        lock (sync)
+        {
+            ObjectDisposedException.ThrowIf(terminated, this);
+            EnsureInitialized();
+            leases++;
+        }
+        return new Lease(this);
+    }
+
+    public void EnsureInitialized()
+    {
+        lock (sync)
+        {
+            if (initialized)
+                return;
+
+            var stopwatch = Stopwatch.StartNew();
+            try
+            {
+                PDFNet.Initialize(options.Key);
+                foreach (var path in options.ResourceSearchPaths ?? DEFAULT_RESOURCE_SEARCH_PATHS)
+                    PDFNet.AddResourceSearchPath(path);
+                foreach (var substitution in options.FontSubstitutions ?? [])
+                    PDFNet.AddFontSubst(substitution.Key, substitution.Value);
+                if (options.WarmUp)
+                    WarmUp();
+
+                initialized = true;
+                initError = null;
+            }
+            catch (Exception e)
+            {
+                initError = e;
+                logger.LogError(e, "PDFNet initialization failed.");
+                throw;
+            }
+            finally
+            {
+                stopwatch.Stop();
+                InitDuration = stopwatch.Elapsed;
+                initDuration.Record(stopwatch.Elapsed.TotalMilliseconds);
+            }
+            logger.LogInformation("PDFNet {0} initialized in {1} ms.", PDFNet.GetVersionString(), InitDuration.TotalMilliseconds);
+        }
+    }
+
+    public RuntimeHealth GetHealth()
+    {
+        lock (sync)
+        {
+            return new RuntimeHealth(
+                initialized && !terminated,
+                initialized ? PDFNet.GetVersionString() : null,
+                InitDuration.TotalMilliseconds,
+                leases,
+                initError?.Message);
+        }
+    }
+
+    public void Dispose()
+    {
+        lock (sync)
+        {
+            if (terminated)
+                return;
+            terminated = true;
+
+            // Never pull the runtime from under a request that is still running.
+            var deadline = DateTime.UtcNow + options.ShutdownTimeout;
+            while (leases > 0)
+            {
+                var remaining = deadline - DateTime.UtcNow;
+                if (remaining <= TimeSpan.Zero || !Monitor.Wait(sync, remaining))
+                {
+                    logger.LogWarning("PDFNet left running: {0} request(s) still hold the runtime.", leases);
+                    meter.Dispose();
+                    return;
+                }
+            }
+
+            if (initialized)
+                PDFNet.Terminate();
+        }
+        meter.Dispose();
+    }
+
+    private void Release()
+    {
+        lock (sync)
+        {
+            leases--;
+            if (leases == 0)
+                Monitor.PulseAll(sync);
+        }
+    }
+
+    private static void WarmUp()
+    {
+        // Touch the font engine and the content writer once so their native caches are populated.
+        using PDFDoc doc = new();
+        using ElementBuilder builder = new();
+        using ElementWriter writer = new();
+        Page page = doc.PageCreate(new Rect(0, 0, 612, 792));
+        writer.Begin(page);
+        writer.WriteElement(builder.CreateTextBegin(Font.Create(doc, Font.StandardType1Font.e_helvetica), 12));
+        writer.WriteElement(builder.CreateTextRun("PDFNet"));
+        writer.WriteElement(builder.CreateTextEnd());
+        writer.End();
+        doc.PagePushBack(page);
+        doc.Save(SDFDoc.SaveOptions.e_remove_unused);
+    }
+
+    private sealed class Lease(PDFNetRuntime runtime) : IDisposable
+    {
+        private int disposed;
+
+        public void Dispose()
+        {
+            if (Interlocked.Exchange(ref disposed, 1) == 0)
+                runtime.Release();
+        }
+    }
+}
+
+public record RuntimeHealth(bool IsHealthy, string? Version, double InitDurationMs, int ActiveLeases, string? Error);
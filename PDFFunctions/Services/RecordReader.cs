@@ -0,0 +1,118 @@
+using System.Runtime.CompilerServices;
+using System.Text;
+using System.Text.Json;
+
+namespace PDFFunctions.Services;
+
+/// <summary>
+/// Reads form records (field name -> value) from JSON Lines or CSV bodies, one record at a time.
+/// </summary>
+public static class RecordReader
+{
+    /// <summary>
+    /// Each non-empty line is a JSON object. Numbers and booleans are passed on as their JSON text, null as an empty value.
+    /// </summary>
+    public static async IAsyncEnumerable<Dictionary<string, string>> ReadJsonLinesAsync(Stream stream, [EnumeratorCancellation] CancellationToken cancellationToken = default)
+    {
+        using var reader = new StreamReader(stream, Encoding.UTF8);
+        string? line;
+        int lineNumber = 0;
+        while ((line = await reader.ReadLineAsync(cancellationToken)) is not null)
+        {
+            ++lineNumber;
+            if (string.IsNullOrWhiteSpace(line))
+                continue;
+            yield return ParseJsonRecord(line, lineNumber);
+        }
+    }
+
+    private static Dictionary<string, string> ParseJsonRecord(string line, int lineNumber)
+    {
+        using JsonDocument json = JsonDocument.Parse(line);
+        if (json.RootElement.ValueKind != JsonValueKind.Object)
+            throw new InvalidDataException($"Line {lineNumber} is not a JSON object.");
+
+        var record = new Dictionary<string, string>();
+        foreach (JsonProperty property in json.RootElement.EnumerateObject())
+        {
+            record[property.Name] = property.Value.ValueKind switch
+            {
+                JsonValueKind.String => property.Value.GetString()!,
+                JsonValueKind.Number => property.Value.GetRawText(),
+                JsonValueKind.True => "true",
+                JsonValueKind.False => "false",
+                JsonValueKind.Null => "",
+                _ => throw new InvalidDataException($"Line {lineNumber}: field '{property.Name}' must be a string, number, boolean or null.")
+            };
+        }
+        return record;
+    }
+
+    /// <summary>
+    /// The first row holds the field names. Quoted values may contain commas, doubled quotes and line breaks.
+    /// </summary>
+    public static async IAsyncEnumerable<Dictionary<string, string>> ReadCsvAsync(Stream stream, [EnumeratorCancellation] CancellationToken cancellationToken = default)
+    {
+        using var reader = new StreamReader(stream, Encoding.UTF8);
+        List<string>? header = null;
+        List<string>? row;
+        while ((row = await ReadCsvRowAsync(reader, cancellationToken)) is not null)
+        {
+            if (row.Count == 1 && row[0].Length == 0)
+                continue;
+            if (header is null)
+            {
+                header = row;
+                continue;
+            }
+
+            var record = new Dictionary<string, string>();
+            for (int i = 0; i < header.Count && i < row.Count; ++i)
+                record[header[i]] = row[i];
+            yield return record;
+        }
+    }
+
+    private static async Task<List<string>?> ReadCsvRowAsync(StreamReader reader, CancellationToken cancellationToken)
+    {
+        string? line = await reader.ReadLineAsync(cancellationToken);
+        if (line is null)
+            return null;
+
+        var values = new List<string>();
+        var value = new StringBuilder();
+        bool quoted = false;
+        while (true)
+        {
+            for (int i = 0; i < line.Length; ++i)
+            {
+                char c = line[i];
+                if (quoted)
+                {
+                    if (c != '"')
+                        value.Append(c);
+                    else if (i + 1 < line.Length && line[i + 1] == '"')
+                        value.Append(line[++i]);
+                    else
+                        quoted = false;
+                }
+                else if (c == '"')
+                    quoted = true;
+                else if (c == ',')
+                {
+                    values.Add(value.ToString());
+                    value.Clear();
+                }
+                else
+                    value.Append(c);
+            }
+
+            // A quoted value continues on the next line.
+            if (!quoted || (line = await reader.ReadLineAsync(cancellationToken)) is null)
+                break;
+            value.Append('\n');
+        }
+        values.Add(value.ToString());
+        return values;
+    }
+}
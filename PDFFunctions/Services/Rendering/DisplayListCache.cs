@@ -0,0 +1,156 @@
+using pdftron.PDF;
+
+namespace PDFFunctions.Services.Rendering;
+
+/// <summary>
+/// Keeps renderers that last drew a given page of an open document. PDFDraw and PDFRasterizer cache
+/// the parsed display list of the last page they drew, so handing the same renderer back for that page
+/// skips content stream parsing, font loading and image decoding, whatever the new size or transform.
+/// Only documents inside an <see cref="Open"/> scope are cached, because a display list must not outlive
+/// its document. The native display lists cannot be measured, so the bound is a number of renderers.
+/// </summary>
+public sealed class DisplayListCache<TRenderer>(int capacity, Action<TRenderer> release) where TRenderer : class
+{
+    private readonly object sync = new();
+    private readonly Dictionary<PDFDoc, int> scopes = new(ReferenceEqualityComparer.Instance);
+    private readonly Dictionary<Key, LinkedListNode<(Key Key, TRenderer Renderer)>> entries = new();
+    private readonly LinkedList<(Key Key, TRenderer Renderer)> lru = new();
+
+    public int Count
+    {
+        get
+        {
+            lock (sync)
+            {
+                return entries.Count;
+            }
+        }
+    }
+
+    /// <summary>
+    /// Starts caching display lists for <paramref name="doc"/>. Dispose the scope before the document;
+    /// the renderers warmed on it are released then. Scopes nest.
+    /// </summary>
+    public IDisposable Open(PDFDoc doc)
+    {
+        lock (sync)
+        {
+            scopes[doc] = scopes.GetValueOrDefault(doc) + 1;
+        }
+        return new Scope(this, doc);
+    }
+
+    public bool IsOpen(PDFDoc doc)
+    {
+        lock (sync)
+        {
+            return scopes.ContainsKey(doc);
+        }
+    }
+
+    /// <summary>
+    /// Takes the renderer that last drew the page, if it is still cached.
+    /// </summary>
+    public bool TryTake(PDFDoc doc, int pageNumber, out TRenderer renderer)
+    {
+        lock (sync)
+        {
+            if (entries.Remove(new Key(doc, pageNumber), out var node))
+            {
+                lru.Remove(node);
+                renderer = node.Value.Renderer;
+                return true;
+            }
+        }
+        renderer = null!;
+        return false;
+    }
+
+    /// <summary>
+    /// Caches a renderer that just drew the page. Returns false when the document has no open scope,
+    /// in which case the caller keeps the renderer.
+    /// </summary>
+    public bool TryAdd(PDFDoc doc, int pageNumber, TRenderer renderer)
+    {
+        List<TRenderer> released = new();
+        lock (sync)
+        {
+            if (!scopes.ContainsKey(doc))
+                return false;
+
+            var key = new Key(doc, pageNumber);
+            if (entries.Remove(key, out var previous))
+            {
+                lru.Remove(previous);
+                released.Add(previous.Value.Renderer);
+            }
+            entries.Add(key, lru.AddFirst((key, renderer)));
+            while (entries.Count > capacity)
+            {
+                var last = lru.Last!;
+                lru.RemoveLast();
+                entries.Remove(last.Value.Key);
+                released.Add(last.Value.Renderer);
+            }
+        }
+        released.ForEach(release);
+        return true;
+    }
+
+    /// <summary>
+    /// Releases every cached renderer, whatever scopes are still open. Called when the owner shuts down.
+    /// </summary>
+    public void Clear()
+    {
+        List<TRenderer> released;
+        lock (sync)
+        {
+            released = lru.Select(entry => entry.Renderer).ToList();
+            lru.Clear();
+            entries.Clear();
+        }
+        released.ForEach(release);
+    }
+
+    private void Close(PDFDoc doc)
+    {
+        List<TRenderer> released = new();
+        lock (sync)
+        {
+            if (--scopes[doc] > 0)
+                return;
+            scopes.Remove(doc);
+            foreach (var key in entries.Keys.Where(key => ReferenceEquals(key.Doc, doc)).ToList())
+            {
+                entries.Remove(key, out var node);
+                lru.Remove(node!);
+                released.Add(node!.Value.Renderer);
+            }
+        }
+        released.ForEach(release);
+    }
+
+    private readonly struct Key(PDFDoc doc, int pageNumber) : IEquatable<Key>
+    {
+        public PDFDoc Doc { get; } = doc;
+
+        public int PageNumber { get; } = pageNumber;
+
+        public bool Equals(Key other) => ReferenceEquals(Doc, other.Doc) && PageNumber == other.PageNumber;
+
+        public override bool Equals(object? obj) => obj is Key other && Equals(other);
+
+        public override int GetHashCode() => HashCode.Combine(ReferenceEqualityComparer.Instance.GetHashCode(Doc), PageNumber);
+    }
+
+    private sealed class Scope(DisplayListCache<TRenderer> cache, PDFDoc doc) : IDisposable
+    {
+        private int disposed;
+
+        public void Dispose()
+        {
+            if (Interlocked.Exchange(ref disposed, 1) == 0)
+                cache.Close(doc);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron.PDF;
+using System.IO.Compression;
+
+namespace PDFFunctions.Services.Rendering;
+
+/// <summary>
+/// Exports whole documents as image sequences or multi-page TIFF. Rasterizing and encoding of the
+/// next pages overlaps with writing the current one, and output goes straight to a stream.
+/// </summary>
+public sealed class DocumentExporter
+{
+    private const int CHUNK_SIZE = 64 * 1024;
+
+    private readonly PageRenderer renderer;
+    private readonly RenderCache renderCache;
+    private readonly RenderScheduler scheduler;
+    private readonly int lookahead;
+
+    public DocumentExporter(PageRenderer renderer, RenderCache renderCache, RenderScheduler scheduler, IOptions<RenderOptions> options)
+    {
+        this.renderer = renderer;
+        this.renderCache = renderCache;
+        this.scheduler = scheduler;
+        lookahead = 2 * Math.Max(1, options.Value.MaxDegreeOfParallelism ?? Environment.ProcessorCount);
+    }
+
+    /// <summary>
+    /// Renders pages in order and passes each one to <paramref name="write"/>. A bounded number of
+    /// pages is rendered ahead of the writer. Cached renders are used when a document hash is given,
+    /// and each page goes through the render scheduler when a job is given.
+    /// </summary>
+    public async Task ExportPagesAsync(PDFDoc doc, RenderSettings settings, Func<RenderedPage, Task> write, int firstPage = 1, int lastPage = int.MaxValue,
+        string? documentHash = null, RenderJob? job = null, CancellationToken cancellationToken = default)
+    {
+        await OrderedPipeline.RunAsync(Math.Max(1, firstPage), Math.Min(lastPage, GetPageCount(doc)), lookahead, pageNumber => Render(doc, pageNumber, settings, documentHash, job, cancellationToken), write);
+    }
+
+    /// <summary>
+    /// Writes the pages as a zip of page_N images.
+    /// </summary>
+    public async Task ExportZipAsync(PDFDoc doc, RenderSettings settings, Stream output, int firstPage = 1, int lastPage = int.MaxValue,
+        string? documentHash = null, RenderJob? job = null, CancellationToken cancellationToken = default)
+    {
+        using var archive = new ZipArchive(output, ZipArchiveMode.Create, leaveOpen: true);
+        await ExportPagesAsync(doc, settings, async page =>
+        {
+            await WriteEntry(archive, $"page_{page.PageNumber}.{GetExtension(page.Format)}", page.Image, cancellationToken);
+        }, firstPage, lastPage, documentHash, job, cancellationToken);
+    }
+
+    /// <summary>
+    /// Writes a zip with the CMYK composite (page_N_composite.tif) and every separation plate
+    /// (page_N_ink.ext) of each page, each page rendered in a single parsing pass. Each page goes
+    /// through the render scheduler when a job is given.
+    /// </summary>
+    public async Task ExportSeparationsAsync(PDFDoc doc, RenderSettings settings, Stream output, bool includeComposite = true,
+        RenderJob? job = null, CancellationToken cancellationToken = default)
+    {
+        using var archive = new ZipArchive(output, ZipArchiveMode.Create, leaveOpen: true);
+        string extension = GetExtension(settings.Format);
+        Task<SeparatedPage> Render(int pageNumber)
+        {
+            Func<CancellationToken, Task<SeparatedPage>> render = token => renderer.RenderSeparationsAsync(doc, pageNumber, settings, includeComposite, token);
+            return job is null ? render(cancellationToken) : scheduler.ScheduleAsync(job, render, cancellationToken);
+        }
+        await OrderedPipeline.RunAsync(1, GetPageCount(doc), lookahead, Render, async page =>
+        {
+            if (page.Composite is not null)
+                await WriteEntry(archive, $"page_{page.PageNumber}_composite.tif", page.Composite.Image, cancellationToken);
+            foreach (var plate in page.Plates)
+                await WriteEntry(archive, $"page_{page.PageNumber}_{plate.Ink}.{extension}", plate.Image, cancellationToken);
+        });
+    }
+
+    /// <summary>
+    /// Writes the document as one multi-page TIFF using Convert.ToTiff. The conversion takes one
+    /// render scheduler slot when a job is given.
+    /// </summary>
+    public async Task ExportTiffAsync(PDFDoc doc, RenderSettings settings, Stream output, RenderJob? job = null, CancellationToken cancellationToken = default)
+    {
+        pdftron.PDF.Convert.TiffOutputOptions tiffOptions = new();
+        tiffOptions.SetDPI(settings.Dpi);
+        tiffOptions.SetBox(settings.PageBox);
+        tiffOptions.SetRotate(settings.Rotation);
+        tiffOptions.SetSmooth(settings.ImageSmoothing);
+        tiffOptions.SetGray(string.Equals(settings.ColorSpace, "Gray", StringComparison.OrdinalIgnoreCase));
+        tiffOptions.SetCMYK(string.Equals(settings.ColorSpace, "CMYK", StringComparison.OrdinalIgnoreCase));
+        tiffOptions.SetMono(settings.BitsPerComponent == 1);
+
+        // ToTiff can only write to a path, so the TIFF goes through a private temp file.
+        string tiffFile = Path.Combine(Path.GetTempPath(), $"{Guid.NewGuid()}.tif");
+        try
+        {
+            Func<CancellationToken, Task<bool>> convert = token => Task.Run(() =>
+            {
+                doc.LockRead();
+                try
+                {
+                    pdftron.PDF.Convert.ToTiff(doc, tiffFile, tiffOptions);
+                    return true;
+                }
+                finally
+                {
+                    doc.UnlockRead();
+                }
+            }, token);
+            await (job is null ? convert(cancellationToken) : scheduler.ScheduleAsync(job, convert, cancellationToken));
+
+            await using var tiff = new FileStream(tiffFile, FileMode.Open, FileAccess.Read, FileShare.Read, CHUNK_SIZE, FileOptions.SequentialScan);
+            await tiff.CopyToAsync(output, CHUNK_SIZE, cancellationToken);
+        }
+        finally
+        {
+            File.Delete(tiffFile);
+        }
+    }
+
+    private static async Task WriteEntry(ZipArchive archive, string name, byte[] image, CancellationToken cancellationToken)
+    {
+        // Images are already compressed; storing them keeps the writer cheap.
+        await using Stream entry = archive.CreateEntry(name, CompressionLevel.NoCompression).Open();
+        await entry.WriteAsync(image, cancellationToken);
+    }
+
+    private static int GetPageCount(PDFDoc doc)
+    {
+        doc.LockRead();
+        try
+        {
+            return doc.GetPageCount();
+        }
+        finally
+        {
+            doc.UnlockRead();
+        }
+    }
+
+    private Task<RenderedPage> Render(PDFDoc doc, int pageNumber, RenderSettings settings, string? documentHash, RenderJob? job, CancellationToken cancellationToken)
+    {
+        Func<CancellationToken, Task<RenderedPage>> render = token => documentHash is null
+            ? renderer.RenderPageAsync(doc, pageNumber, settings, token)
+            : renderCache.GetOrRenderAsync(documentHash, pageNumber, settings, () => renderer.RenderPageAsync(doc, pageNumber, settings, token), token);
+        return job is null ? render(cancellationToken) : scheduler.ScheduleAsync(job, render, cancellationToken);
+    }
+
+    public static string GetExtension(string format) => format switch
+    {
+        "JPEG" => "jpg",
+        "TIFF" => "tif",
+        _ => format.ToLowerInvariant()
+    };
+}
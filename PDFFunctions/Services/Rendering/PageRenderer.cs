@@ -0,0 +1,315 @@
+using Microsoft.Extensions.Logging;
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron.Filters;
+using pdftron.PDF;
+using pdftron.SDF;
+using System.Collections.Concurrent;
+
+namespace PDFFunctions.Services.Rendering;
+
+/// <summary>
+/// Renders pages of a document in parallel. Each worker uses its own pooled PDFDraw and only
+/// holds a read lock on the document while drawing, so many pages render at the same time.
+/// </summary>
+public sealed class PageRenderer : IDisposable
+{
+    private static readonly double[] DEFAULT_PREVIEW_SCALES = [0.25];
+    // PDFDraw has no getter for the overprint mode, so separations restore the constructor's default.
+    private const PDFRasterizer.OverprintPreviewMode DEFAULT_OVERPRINT = PDFRasterizer.OverprintPreviewMode.e_op_pdfx_on;
+
+    private readonly ILogger logger;
+    private readonly ConcurrentBag<PDFDraw> draws = new();
+    private readonly SemaphoreSlim slots;
+    private readonly DisplayListCache<PDFDraw> displayLists;
+
+    public PageRenderer(ILoggerFactory loggerFactory, IOptions<RenderOptions> options)
+    {
+        logger = loggerFactory.CreateLogger<PageRenderer>();
+        slots = new SemaphoreSlim(Math.Max(1, options.Value.MaxDegreeOfParallelism ?? Environment.ProcessorCount));
+        displayLists = new DisplayListCache<PDFDraw>(Math.Max(1, options.Value.DisplayListCacheSize), draw =>
+        {
+            draw.SetCaching(false);
+            draws.Add(draw);
+        });
+    }
+
+    /// <summary>
+    /// Keeps parsed pages of <paramref name="doc"/> around until the returned scope is disposed, so
+    /// rendering a page again at another size or quality skips parsing. Dispose it before the document.
+    /// </summary>
+    public IDisposable CacheDisplayLists(PDFDoc doc) => displayLists.Open(doc);
+
+    /// <summary>
+    /// Starts rendering pages <paramref name="firstPage"/> to <paramref name="lastPage"/> (1-based,
+    /// inclusive) and returns one task per page, in page order, that completes with the encoded image.
+    /// </summary>
+    public IReadOnlyList<Task<RenderedPage>> RenderPages(PDFDoc doc, int firstPage, int lastPage, RenderSettings settings, CancellationToken cancellationToken = default)
+    {
+        doc.LockRead();
+        int pageCount;
+        try
+        {
+            pageCount = doc.GetPageCount();
+        }
+        finally
+        {
+            doc.UnlockRead();
+        }
+
+        firstPage = Math.Max(1, firstPage);
+        lastPage = Math.Min(pageCount, lastPage);
+        return Enumerable.Range(firstPage, Math.Max(0, lastPage - firstPage + 1))
+            .Select(pageNumber => RenderPageAsync(doc, pageNumber, settings, cancellationToken))
+            .ToList();
+    }
+
+    public Task<RenderedPage> RenderPageAsync(PDFDoc doc, int pageNumber, RenderSettings settings, CancellationToken cancellationToken = default)
+    {
+        return RunAsync(doc, pageNumber, settings, (draw, page) => Export(draw, page, pageNumber, settings), cancellationToken);
+    }
+
+    /// <summary>
+    /// Renders the same page once per settings entry, e.g. a thumbnail, a preview and a zoomed view.
+    /// One PDFDraw draws them all, so the page is parsed once and only rasterized and encoded again.
+    /// </summary>
+    public Task<IReadOnlyList<RenderedPage>> RenderVariantsAsync(PDFDoc doc, int pageNumber, IReadOnlyList<RenderSettings> variants, CancellationToken cancellationToken = default)
+    {
+        ArgumentOutOfRangeException.ThrowIfZero(variants.Count, nameof(variants));
+        return RunAsync<IReadOnlyList<RenderedPage>>(doc, pageNumber, variants[0], (draw, page) =>
+        {
+            bool cached = displayLists.IsOpen(doc);
+            if (!cached)
+                draw.SetCaching(true);
+            try
+            {
+                var pages = new List<RenderedPage>(variants.Count);
+                foreach (var settings in variants)
+                {
+                    settings.ApplyTo(draw);
+                    pages.Add(Export(draw, page, pageNumber, settings));
+                }
+                return pages;
+            }
+            finally
+            {
+                if (!cached)
+                    draw.SetCaching(false);
+            }
+        }, cancellationToken);
+    }
+
+    /// <summary>
+    /// Renders the page in passes of increasing quality: fast previews at a fraction of the requested
+    /// resolution with smoothing and anti-aliasing off, and the requested output. The full-quality pass
+    /// starts at once on its own renderer; previews fill the wait and stop once it is done. Every pass is
+    /// handed to <paramref name="onPass"/> as soon as it is ready, one at a time; the final one is also returned.
+    /// </summary>
+    public async Task<RenderedPage> RenderProgressiveAsync(PDFDoc doc, int pageNumber, RenderSettings settings, Func<RenderPass, Task> onPass,
+        IReadOnlyList<double>? previewScales = null, CancellationToken cancellationToken = default)
+    {
+        // Previews draw the same page, so each one leaves its display list warm for the next.
+        using var scope = displayLists.Open(doc);
+        using var previewCancellation = CancellationTokenSource.CreateLinkedTokenSource(cancellationToken);
+        Task<RenderedPage> final = RenderPageAsync(doc, pageNumber, settings, cancellationToken);
+        Task<RenderedPage>? late = null;
+        int index = 0;
+        try
+        {
+            foreach (double scale in (previewScales ?? DEFAULT_PREVIEW_SCALES).Where(scale => scale > 0 && scale < 1).Order())
+            {
+                if (final.IsCompleted)
+                    break;
+                var previewSettings = settings with
+                {
+                    Dpi = settings.Dpi * scale,
+                    Width = settings.Width is int width ? Math.Max(1, (int)(width * scale)) : null,
+                    Height = settings.Height is int height ? Math.Max(1, (int)(height * scale)) : null,
+                    ImageSmoothing = false,
+                    HighQualityResampling = false,
+                    AntiAliasing = false
+                };
+                Task<RenderedPage> preview = RenderPageAsync(doc, pageNumber, previewSettings, previewCancellation.Token);
+                if (await Task.WhenAny(preview, final) == final)
+                {
+                    // A preview that is late is not worth showing; it stops if it has not started yet.
+                    previewCancellation.Cancel();
+                    late = preview;
+                    break;
+                }
+                await onPass(new RenderPass(index++, false, await preview));
+            }
+
+            var page = await final;
+            await onPass(new RenderPass(index, true, page));
+            return page;
+        }
+        finally
+        {
+            // Neither render may outlive the call, since the caller disposes the document afterwards.
+            await Task.WhenAll(new[] { final, late }.OfType<Task<RenderedPage>>()).ContinueWith(_ => { }, TaskScheduler.Default);
+        }
+    }
+
+    /// <summary>
+    /// Renders a CMYK composite and every separation plate of a page with one PDFDraw. Display list
+    /// caching is on for the call, so the page content is parsed once and replayed for each output.
+    /// Plates are encoded as <see cref="RenderSettings.Format"/> with the settings' bits per component
+    /// and quality hints; the composite is always a CMYK TIFF. Overprint is simulated for every file.
+    /// </summary>
+    public Task<SeparatedPage> RenderSeparationsAsync(PDFDoc doc, int pageNumber, RenderSettings settings, bool includeComposite = true, CancellationToken cancellationToken = default)
+    {
+        return RunAsync(doc, pageNumber, settings, (draw, page) =>
+        {
+            // Separations can only be exported to files, named <base>_<ink>.<ext>.
+            string plateDirectory = Path.Combine(Path.GetTempPath(), Guid.NewGuid().ToString());
+            Directory.CreateDirectory(plateDirectory);
+            bool cached = displayLists.IsOpen(doc);
+            if (!cached)
+                draw.SetCaching(true);
+            // Plates must show overprinted inks whether or not the file claims PDF/X.
+            draw.SetOverprint(PDFRasterizer.OverprintPreviewMode.e_op_on);
+            try
+            {
+                using ObjSet hintSet = new();
+                RenderedPage? composite = null;
+                if (includeComposite)
+                {
+                    Obj cmykHint = hintSet.CreateDict();
+                    cmykHint.PutName("ColorSpace", "CMYK");
+                    using MemoryFilter output = new(0, false);
+                    draw.Export(page, output, "TIFF", cmykHint);
+                    composite = new RenderedPage(pageNumber, "TIFF", MemoryFilters.ToArray(output));
+                }
+
+                // BPC and Quality come from the settings; the color space is always Separation here.
+                Obj separationHint = settings.CreateHints(hintSet) ?? hintSet.CreateDict();
+                separationHint.PutName("ColorSpace", "Separation");
+                draw.Export(page, Path.Combine(plateDirectory, "plate"), settings.Format, separationHint);
+
+                var plates = Directory.GetFiles(plateDirectory, "plate_*")
+                    .Order(StringComparer.Ordinal)
+                    .Select(plateFile => new SeparationPlate(Path.GetFileNameWithoutExtension(plateFile)["plate_".Length..], File.ReadAllBytes(plateFile)))
+                    .ToList();
+                return new SeparatedPage(pageNumber, settings.Format, composite, plates);
+            }
+            finally
+            {
+                // Only after the exports: pooled draws are shared with other renders, which expect
+                // PDFDraw's defaults of no caching outside a scope and overprint for PDF/X files only.
+                if (!cached)
+                    draw.SetCaching(false);
+                draw.SetOverprint(DEFAULT_OVERPRINT);
+                Directory.Delete(plateDirectory, true);
+            }
+        }, cancellationToken);
+    }
+
+    /// <summary>
+    /// Renders raw pixels, skipping image encoding and System.Drawing. The pixels are the array the .NET
+    /// binding's GetBitmap returns, handed over as is; the binding has no overload that renders into a
+    /// caller-owned buffer, so none is offered here.
+    /// </summary>
+    public Task<RenderedBitmap> RenderBitmapAsync(PDFDoc doc, int pageNumber, RenderSettings settings, PDFDraw.PixelFormat pixelFormat, CancellationToken cancellationToken = default)
+    {
+        return RunAsync(doc, pageNumber, settings, (draw, page) =>
+        {
+            BitmapInfo info = draw.GetBitmap(page, pixelFormat, false);
+            return new RenderedBitmap(new BitmapLayout(info.Width, info.Height, info.Stride, pixelFormat), info.Buffer);
+        }, cancellationToken);
+    }
+
+    private static RenderedPage Export(PDFDraw draw, Page page, int pageNumber, RenderSettings settings)
+    {
+        using ObjSet hintSet = new();
+        using MemoryFilter output = new(0, false);
+        Obj? hints = settings.CreateHints(hintSet);
+        if (hints is null)
+            draw.Export(page, output, settings.Format);
+        else
+            draw.Export(page, output, settings.Format, hints);
+        return new RenderedPage(pageNumber, settings.Format, MemoryFilters.ToArray(output));
+    }
+
+    private async Task<T> RunAsync<T>(PDFDoc doc, int pageNumber, RenderSettings settings, Func<PDFDraw, Page, T> render, CancellationToken cancellationToken)
+    {
+        await slots.WaitAsync(cancellationToken);
+        try
+        {
+            return await Task.Run(() => Run(doc, pageNumber, settings, render), cancellationToken);
+        }
+        finally
+        {
+            slots.Release();
+        }
+    }
+
+    private T Run<T>(PDFDoc doc, int pageNumber, RenderSettings settings, Func<PDFDraw, Page, T> render)
+    {
+        PDFDraw draw = Rent(doc, pageNumber);
+        try
+        {
+            settings.ApplyTo(draw);
+
+            // A read lock lets other workers draw other pages of the same document concurrently.
+            doc.LockRead();
+            try
+            {
+                return render(draw, doc.GetPage(pageNumber));
+            }
+            finally
+            {
+                doc.UnlockRead();
+            }
+        }
+        catch (Exception e)
+        {
+            logger.LogInformation("Exception caught rendering page {0}:\n{1}", pageNumber, e);
+            throw;
+        }
+        finally
+        {
+            if (!displayLists.TryAdd(doc, pageNumber, draw))
+            {
+                // The document's scope may have closed while this draw was rendering.
+                draw.SetCaching(false);
+                draws.Add(draw);
+            }
+        }
+    }
+
+    // Prefers the draw that still holds this page's display list.
+    private PDFDraw Rent(PDFDoc doc, int pageNumber)
+    {
+        if (displayLists.TryTake(doc, pageNumber, out var warm))
+            return warm;
+        PDFDraw draw = draws.TryTake(out var pooled) ? pooled : new PDFDraw();
+        if (displayLists.IsOpen(doc))
+            draw.SetCaching(true);
+        return draw;
+    }
+
+    public void Dispose()
+    {
+        // Cached draws go back to the pool first, so they are disposed with the rest.
+        displayLists.Clear();
+        while (draws.TryTake(out var draw))
+            draw.Dispose();
+        slots.Dispose();
+    }
+}
+
+public record RenderedPage(int PageNumber, string Format, byte[] Image);
+
+public record RenderPass(int Index, bool IsFinal, RenderedPage Page);
+
+public record SeparationPlate(string Ink, byte[] Image);
+
+public record SeparatedPage(int PageNumber, string Format, RenderedPage? Composite, IReadOnlyList<SeparationPlate> Plates);
+
+public record BitmapLayout(int Width, int Height, int Stride, PDFDraw.PixelFormat PixelFormat)
+{
+    public int Size => Stride * Height;
+}
+
+public record RenderedBitmap(BitmapLayout Layout, byte[] Pixels);
@@ -0,0 +1,275 @@
+using Microsoft.Extensions.Logging;
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using System.Collections.Concurrent;
+using System.Globalization;
+using System.Security.Cryptography;
+using System.Text;
+
+namespace PDFFunctions.Services.Rendering;
+
+/// <summary>
+/// Two-tier cache of rendered pages: a size-bounded LRU in memory backed by an optional, size-bounded
+/// folder on disk. Entries are keyed by the document content hash, the page number and every render
+/// setting (DPI or size, rotation, page box, smoothing and encoder hints). Concurrent misses on the same
+/// entry share one render.
+/// </summary>
+public sealed class RenderCache
+{
+    private readonly ILogger logger;
+    private readonly RenderOptions options;
+    private readonly Dictionary<string, LinkedListNode<(string Key, RenderedPage Page)>> entries = new();
+    private readonly LinkedList<(string Key, RenderedPage Page)> lru = new();
+    private readonly DocumentHasher hasher;
+    private readonly ConcurrentDictionary<string, Task<RenderedPage>> inFlight = new();
+    private readonly object diskSync = new();
+    // Bytes in the disk tier, or -1 until the folder has been measured.
+    private long diskBytes = -1;
+    private int trimming;
+    private long memoryBytes;
+    private long hits;
+    private long misses;
+
+    public RenderCache(ILoggerFactory loggerFactory, IOptions<RenderOptions> options, DocumentHasher hasher)
+    {
+        this.options = options.Value;
+        this.hasher = hasher;
+        logger = loggerFactory.CreateLogger<RenderCache>();
+    }
+
+    public long Hits => Interlocked.Read(ref hits);
+
+    public long Misses => Interlocked.Read(ref misses);
+
+    public string GetDocumentHash(string file) => hasher.GetHash(file);
+
+    public async Task<RenderedPage> GetOrRenderAsync(string documentHash, int pageNumber, RenderSettings settings, Func<Task<RenderedPage>> render, CancellationToken cancellationToken = default)
+    {
+        string key = GetKey(documentHash, pageNumber, settings);
+        while (true)
+        {
+            if (TryGetFromMemory(key, out var cached))
+            {
+                Interlocked.Increment(ref hits);
+                return cached;
+            }
+
+            // The first caller to miss loads or renders the entry; the others wait for its result.
+            var pending = new TaskCompletionSource<RenderedPage>(TaskCreationOptions.RunContinuationsAsynchronously);
+            var current = inFlight.GetOrAdd(key, pending.Task);
+            if (current != pending.Task)
+            {
+                try
+                {
+                    return await current.WaitAsync(cancellationToken);
+                }
+                catch (OperationCanceledException) when (!cancellationToken.IsCancellationRequested)
+                {
+                    // The caller that was rendering gave up; try again, rendering for this caller if need be.
+                    continue;
+                }
+            }
+
+            try
+            {
+                var page = await LoadOrRenderAsync(key, pageNumber, settings, render);
+                pending.SetResult(page);
+                return page;
+            }
+            catch (OperationCanceledException e)
+            {
+                pending.SetCanceled(e.CancellationToken);
+                throw;
+            }
+            catch (Exception e)
+            {
+                pending.SetException(e);
+                throw;
+            }
+            finally
+            {
+                inFlight.TryRemove(new KeyValuePair<string, Task<RenderedPage>>(key, pending.Task));
+            }
+        }
+    }
+
+    private async Task<RenderedPage> LoadOrRenderAsync(string key, int pageNumber, RenderSettings settings, Func<Task<RenderedPage>> render)
+    {
+        string? path = GetDiskPath(key);
+        if (path is not null && File.Exists(path))
+        {
+            try
+            {
+                var fromDisk = new RenderedPage(pageNumber, settings.Format, await File.ReadAllBytesAsync(path));
+                Touch(path);
+                AddToMemory(key, fromDisk);
+                Interlocked.Increment(ref hits);
+                return fromDisk;
+            }
+            catch (Exception e) when (e is IOException or UnauthorizedAccessException)
+            {
+                logger.LogInformation("Render cache entry {0} could not be read: {1}", path, e.Message);
+            }
+        }
+
+        Interlocked.Increment(ref misses);
+        var rendered = await render();
+        AddToMemory(key, rendered);
+        if (path is not null)
+            await WriteToDiskAsync(path, rendered.Image);
+        return rendered;
+    }
+
+    private static string GetKey(string documentHash, int pageNumber, RenderSettings settings)
+    {
+        string text = string.Join('|', documentHash, pageNumber.ToString(CultureInfo.InvariantCulture), settings.GetCacheKey());
+        return Convert.ToHexString(SHA256.HashData(Encoding.UTF8.GetBytes(text)));
+    }
+
+    private bool TryGetFromMemory(string key, out RenderedPage page)
+    {
+        lock (entries)
+        {
+            if (entries.TryGetValue(key, out var node))
+            {
+                lru.Remove(node);
+                lru.AddFirst(node);
+                page = node.Value.Page;
+                return true;
+            }
+        }
+        page = null!;
+        return false;
+    }
+
+    private void AddToMemory(string key, RenderedPage page)
+    {
+        if (page.Image.Length > options.MemoryCacheBytes)
+            return;
+
+        lock (entries)
+        {
+            if (entries.ContainsKey(key))
+                return;
+            entries[key] = lru.AddFirst((key, page));
+            memoryBytes += page.Image.Length;
+            while (memoryBytes > options.MemoryCacheBytes && lru.Last is not null)
+            {
+                var evicted = lru.Last.Value;
+                lru.RemoveLast();
+                entries.Remove(evicted.Key);
+                memoryBytes -= evicted.Page.Image.Length;
+            }
+        }
+    }
+
+    private string? GetDiskPath(string key) =>
+        string.IsNullOrEmpty(options.CacheDirectory) ? null : Path.Combine(options.CacheDirectory, key[..2], key + ".bin");
+
+    private async Task WriteToDiskAsync(string path, byte[] image)
+    {
+        // Written under a unique name and moved into place, so readers never see a partial entry.
+        // A failed write only costs the disk tier; the render itself has succeeded.
+        string temp = $"{path}.{Guid.NewGuid():N}.tmp";
+        try
+        {
+            Directory.CreateDirectory(Path.GetDirectoryName(path)!);
+            await File.WriteAllBytesAsync(temp, image);
+            File.Move(temp, path, true);
+        }
+        catch (Exception e) when (e is IOException or UnauthorizedAccessException)
+        {
+            logger.LogInformation("Render cache entry {0} could not be written: {1}", path, e.Message);
+            TryDelete(temp);
+            return;
+        }
+
+        if (AddDiskBytes(image.Length) > options.DiskCacheBytes && Interlocked.CompareExchange(ref trimming, 1, 0) == 0)
+            _ = Task.Run(TrimDisk);
+    }
+
+    private long AddDiskBytes(long length)
+    {
+        lock (diskSync)
+        {
+            if (diskBytes >= 0)
+                diskBytes += length;
+            else
+            {
+                try
+                {
+                    diskBytes = EnumerateDiskEntries().Sum(entry => entry.Length);
+                }
+                catch (Exception e) when (e is IOException or UnauthorizedAccessException)
+                {
+                    logger.LogInformation("Render cache could not be measured: {0}", e.Message);
+                    return 0;
+                }
+            }
+            return diskBytes;
+        }
+    }
+
+    // Deletes the least recently used entries until the disk tier is back under 90% of its bound.
+    private void TrimDisk()
+    {
+        try
+        {
+            var files = EnumerateDiskEntries().OrderBy(entry => entry.LastWriteTimeUtc).ToList();
+            long total = files.Sum(entry => entry.Length);
+            long target = options.DiskCacheBytes / 10 * 9;
+            foreach (var file in files)
+            {
+                if (total <= target)
+                    break;
+                if (TryDelete(file.FullName))
+                    total -= file.Length;
+            }
+            lock (diskSync)
+            {
+                diskBytes = total;
+            }
+        }
+        catch (Exception e) when (e is IOException or UnauthorizedAccessException)
+        {
+            logger.LogInformation("Render cache could not be trimmed: {0}", e.Message);
+        }
+        finally
+        {
+            Volatile.Write(ref trimming, 0);
+        }
+    }
+
+    private IEnumerable<FileInfo> EnumerateDiskEntries()
+    {
+        var directory = new DirectoryInfo(options.CacheDirectory!);
+        return directory.Exists ? directory.EnumerateFiles("*.bin", SearchOption.AllDirectories) : [];
+    }
+
+    // The write time orders entries for eviction, so a hit marks the entry as recently used.
+    private void Touch(string path)
+    {
+        try
+        {
+            File.SetLastWriteTimeUtc(path, DateTime.UtcNow);
+        }
+        catch (Exception e) when (e is IOException or UnauthorizedAccessException)
+        {
+            logger.LogInformation("Render cache entry {0} could not be touched: {1}", path, e.Message);
+        }
+    }
+
+    private bool TryDelete(string path)
+    {
+        try
+        {
+            File.Delete(path);
+            return true;
+        }
+        catch (Exception e) when (e is IOException or UnauthorizedAccessException)
+        {
+            logger.LogInformation("Render cache entry {0} could not be deleted: {1}", path, e.Message);
+            return false;
+        }
+    }
+}
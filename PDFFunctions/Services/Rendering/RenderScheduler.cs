@@ -0,0 +1,345 @@
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using System.Diagnostics;
+using System.Diagnostics.Metrics;
+
+namespace PDFFunctions.Services.Rendering;
+
+public enum RenderPriority
+{
+    Interactive,
+    Bulk
+}
+
+/// <summary>
+/// Who asked for a render and how urgent it is. Scheduling a job with the same supersede key as a
+/// job that has not finished yet cancels the older one, e.g. a viewer that scrolled past a page.
+/// </summary>
+public record RenderJob(string Tenant, RenderPriority Priority = RenderPriority.Bulk, string? SupersedeKey = null);
+
+/// <summary>
+/// Decides which render runs next when interactive previews and bulk backfills share the renderers.
+/// Interactive jobs go first; bulk jobs still get one slot in every few dispatches so backfills keep
+/// moving. Within a lane tenants are served round-robin, so one large backfill cannot hold the lane.
+/// </summary>
+public sealed class RenderScheduler : IDisposable
+{
+    public static readonly string METER_NAME = "PDFFunctions.Rendering";
+
+    // Interactive dispatches in a row before a waiting bulk job is let through.
+    private const int INTERACTIVE_BURST = 4;
+
+    private readonly object sync = new();
+    private readonly Lane[] lanes = [new(RenderPriority.Interactive), new(RenderPriority.Bulk)];
+    private readonly Dictionary<string, Entry> latest = new();
+    private readonly int concurrency;
+    private readonly Meter meter;
+    private readonly Counter<long> superseded;
+    private readonly Histogram<double> queueWait;
+    private int running;
+    private int interactiveStreak;
+    private bool disposed;
+
+    public RenderScheduler(IOptions<RenderOptions> options)
+    {
+        concurrency = Math.Max(1, options.Value.MaxDegreeOfParallelism ?? Environment.ProcessorCount);
+        meter = new Meter(METER_NAME);
+        meter.CreateObservableGauge("render.queue.depth", GetQueueDepths, description: "Render jobs waiting, per priority lane.");
+        meter.CreateObservableGauge("render.jobs.running", () => Volatile.Read(ref running), description: "Render jobs currently running.");
+        superseded = meter.CreateCounter<long>("render.jobs.superseded", description: "Render jobs cancelled by a newer job with the same key.");
+        queueWait = meter.CreateHistogram<double>("render.queue.wait", "ms", "Time render jobs spent waiting for a slot.");
+    }
+
+    public int QueueDepth(RenderPriority priority)
+    {
+        lock (sync)
+        {
+            return lanes[(int)priority].Depth;
+        }
+    }
+
+    /// <summary>
+    /// Queues <paramref name="work"/> and runs it when its lane and tenant get a slot. The token passed
+    /// to the work is cancelled when the caller cancels or when a newer job supersedes this one.
+    /// </summary>
+    public Task<T> ScheduleAsync<T>(RenderJob job, Func<CancellationToken, Task<T>> work, CancellationToken cancellationToken = default)
+    {
+        var entry = new Entry<T>(job, work, cancellationToken);
+        // Registered before the entry is visible to Dispatch: once queued, another thread may run and
+        // finish it at any time, and the entry's token source is disposed when it finishes.
+        entry.OnCancelledWhileQueued(() =>
+        {
+            lock (sync)
+            {
+                if (entry.IsEnqueued && !disposed)
+                    lanes[(int)job.Priority].Depth--;
+                Forget(entry);
+            }
+        });
+
+        List<Entry> ready;
+        lock (sync)
+        {
+            ObjectDisposedException.ThrowIf(disposed, this);
+            // Cancelled before it was queued; the callback has already completed the task.
+            if (!entry.IsQueued)
+                return entry.Task;
+            if (job.SupersedeKey is string key)
+            {
+                if (latest.TryGetValue(key, out var previous) && previous.Supersede())
+                    superseded.Add(1, new KeyValuePair<string, object?>("lane", previous.Job.Priority.ToString()));
+                latest[key] = entry;
+            }
+            lanes[(int)job.Priority].Enqueue(entry);
+            entry.IsEnqueued = true;
+            ready = Dispatch();
+        }
+        Start(ready);
+        return entry.Task;
+    }
+
+    // Must be called under the lock. Returns the entries to start once the lock is released.
+    private List<Entry> Dispatch()
+    {
+        List<Entry> ready = new();
+        while (running < concurrency && TryDequeue(out var entry))
+        {
+            running++;
+            ready.Add(entry);
+        }
+        return ready;
+    }
+
+    private bool TryDequeue(out Entry entry)
+    {
+        Lane interactive = lanes[(int)RenderPriority.Interactive];
+        Lane bulk = lanes[(int)RenderPriority.Bulk];
+        bool bulkTurn = interactiveStreak >= INTERACTIVE_BURST;
+        if (!bulkTurn && interactive.TryDequeue(out entry))
+        {
+            interactiveStreak++;
+            return true;
+        }
+        if (bulk.TryDequeue(out entry))
+        {
+            interactiveStreak = 0;
+            return true;
+        }
+        if (interactive.TryDequeue(out entry))
+        {
+            interactiveStreak = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private void Start(List<Entry> ready)
+    {
+        foreach (var entry in ready)
+        {
+            queueWait.Record(entry.Waited.TotalMilliseconds, new KeyValuePair<string, object?>("lane", entry.Job.Priority.ToString()));
+            Task.Run(entry.Run).ContinueWith(_ => Complete(entry), TaskScheduler.Default);
+        }
+    }
+
+    private void Complete(Entry entry)
+    {
+        List<Entry> ready;
+        lock (sync)
+        {
+            running--;
+            Forget(entry);
+            ready = Dispatch();
+        }
+        Start(ready);
+    }
+
+    private void Forget(Entry entry)
+    {
+        if (entry.Job.SupersedeKey is string key && latest.TryGetValue(key, out var current) && current == entry)
+            latest.Remove(key);
+    }
+
+    private IEnumerable<Measurement<int>> GetQueueDepths()
+    {
+        lock (sync)
+        {
+            return lanes.Select(lane => new Measurement<int>(lane.Depth, new KeyValuePair<string, object?>("lane", lane.Priority.ToString()))).ToList();
+        }
+    }
+
+    public void Dispose()
+    {
+        List<Entry> queued;
+        lock (sync)
+        {
+            disposed = true;
+            queued = lanes.SelectMany(lane => lane.Drain()).ToList();
+        }
+        foreach (var entry in queued)
+            entry.Cancel();
+        meter.Dispose();
+    }
+
+    /// <summary>
+    /// One queue per tenant, served round-robin. Jobs cancelled while queued are skipped on dequeue.
+    /// </summary>
+    private sealed class Lane(RenderPriority priority)
+    {
+        private readonly Dictionary<string, Queue<Entry>> tenants = new();
+        private readonly Queue<string> turns = new();
+
+        public RenderPriority Priority { get; } = priority;
+
+        public int Depth { get; set; }
+
+        public void Enqueue(Entry entry)
+        {
+            if (!tenants.TryGetValue(entry.Job.Tenant, out var queue))
+            {
+                queue = new Queue<Entry>();
+                tenants.Add(entry.Job.Tenant, queue);
+                turns.Enqueue(entry.Job.Tenant);
+            }
+            queue.Enqueue(entry);
+            Depth++;
+        }
+
+        public bool TryDequeue(out Entry entry)
+        {
+            while (turns.TryDequeue(out var tenant))
+            {
+                var queue = tenants[tenant];
+                bool found = false;
+                entry = null!;
+                while (!found && queue.TryDequeue(out var next))
+                {
+                    if (next.TryClaim())
+                    {
+                        entry = next;
+                        found = true;
+                        Depth--;
+                    }
+                }
+
+                if (queue.Count > 0)
+                    turns.Enqueue(tenant);
+                else
+                    tenants.Remove(tenant);
+                if (found)
+                    return true;
+            }
+            entry = null!;
+            return false;
+        }
+
+        public IEnumerable<Entry> Drain()
+        {
+            var entries = tenants.Values.SelectMany(queue => queue).ToList();
+            Depth = 0;
+            tenants.Clear();
+            turns.Clear();
+            return entries;
+        }
+    }
+
+    private abstract class Entry(RenderJob job, CancellationToken cancellationToken)
+    {
+        private const int QUEUED = 0, RUNNING = 1, DONE = 2;
+
+        private readonly long enqueued = Stopwatch.GetTimestamp();
+        private int state = QUEUED;
+
+        protected readonly CancellationTokenSource cancellation = CancellationTokenSource.CreateLinkedTokenSource(cancellationToken);
+
+        public RenderJob Job { get; } = job;
+
+        public TimeSpan Waited => Stopwatch.GetElapsedTime(enqueued);
+
+        public bool IsQueued => Volatile.Read(ref state) == QUEUED;
+
+        // Set under the scheduler lock once the entry is in its lane.
+        public bool IsEnqueued { get; set; }
+
+        // Moves a queued entry to running; false when it was cancelled while waiting.
+        public bool TryClaim() => Interlocked.CompareExchange(ref state, RUNNING, QUEUED) == QUEUED;
+
+        public void OnCancelledWhileQueued(Action removed)
+        {
+            cancellation.Token.Register(() =>
+            {
+                if (Interlocked.CompareExchange(ref state, DONE, QUEUED) == QUEUED)
+                {
+                    SetCanceled();
+                    removed();
+                    // Run never starts for this entry, so the linked source is released here; that also
+                    // unregisters it from the caller's token. Cancel tolerates the disposal.
+                    cancellation.Dispose();
+                }
+            });
+        }
+
+        // Returns true when the entry had not finished yet and is now cancelled.
+        public bool Supersede()
+        {
+            if (Volatile.Read(ref state) == DONE)
+                return false;
+            Cancel();
+            return true;
+        }
+
+        public void Cancel()
+        {
+            try
+            {
+                cancellation.Cancel();
+            }
+            catch (ObjectDisposedException)
+            {
+            }
+        }
+
+        public async Task Run()
+        {
+            try
+            {
+                await Execute(cancellation.Token);
+            }
+            finally
+            {
+                // ScheduleAsync no longer touches the token source once the entry is queued; Cancel tolerates disposal.
+                Volatile.Write(ref state, DONE);
+                cancellation.Dispose();
+            }
+        }
+
+        protected abstract Task Execute(CancellationToken cancellationToken);
+
+        protected abstract void SetCanceled();
+    }
+
+    private sealed class Entry<T>(RenderJob job, Func<CancellationToken, Task<T>> work, CancellationToken cancellationToken) : Entry(job, cancellationToken)
+    {
+        private readonly TaskCompletionSource<T> completion = new(TaskCreationOptions.RunContinuationsAsynchronously);
+
+        public Task<T> Task => completion.Task;
+
+        protected override async Task Execute(CancellationToken cancellationToken)
+        {
+            try
+            {
+                completion.TrySetResult(await work(cancellationToken));
+            }
+            catch (OperationCanceledException) when (cancellationToken.IsCancellationRequested)
+            {
+                completion.TrySetCanceled(cancellationToken);
+            }
+            catch (Exception e)
+            {
+                completion.TrySetException(e);
+            }
+        }
+
+        protected override void SetCanceled() => completion.TrySetCanceled();
+    }
+}
@@ -0,0 +1,117 @@
+using pdftron.PDF;
+using pdftron.SDF;
+using System.Globalization;
+
+namespace PDFFunctions.Services.Rendering;
+
+/// <summary>
+/// Everything that affects the pixels PDFDraw produces for a page. Being a record, two equal
+/// settings describe the same output, which is what render caches key on.
+/// </summary>
+public record RenderSettings
+{
+    public const double MAX_DPI = 1200;
+    public const int MAX_IMAGE_SIZE = 16384;
+
+    private static readonly HashSet<string> FORMATS = new(StringComparer.Ordinal) { "PNG", "JPEG", "TIFF", "BMP", "RAW" };
+    private static readonly HashSet<string> COLOR_SPACES = new(StringComparer.OrdinalIgnoreCase) { "Gray", "RGB", "CMYK" };
+
+    public double Dpi { get; init; } = 92;
+
+    // When set, the page is fitted into this size instead of using Dpi.
+    public int? Width { get; init; }
+
+    public int? Height { get; init; }
+
+    public Page.Rotate Rotation { get; init; } = Page.Rotate.e_0;
+
+    public Page.Box PageBox { get; init; } = Page.Box.e_crop;
+
+    public bool ImageSmoothing { get; init; } = true;
+
+    public bool HighQualityResampling { get; init; } = false;
+
+    public bool AntiAliasing { get; init; } = true;
+
+    // PNG, JPEG, TIFF, BMP or RAW.
+    public string Format { get; init; } = "PNG";
+
+    // Encoder hints, see PDFDraw.Export: Gray, RGB, CMYK or Separation.
+    public string? ColorSpace { get; init; }
+
+    public int? BitsPerComponent { get; init; }
+
+    public int? Quality { get; init; }
+
+    /// <summary>
+    /// Culture-independent text form of every setting, for cache keys. A new property must be added here
+    /// too; bump the version when the format changes so old disk entries are not reused.
+    /// </summary>
+    public string GetCacheKey() => string.Join('|',
+        "v1",
+        Dpi.ToString("R", CultureInfo.InvariantCulture),
+        Width?.ToString(CultureInfo.InvariantCulture) ?? "",
+        Height?.ToString(CultureInfo.InvariantCulture) ?? "",
+        ((int)Rotation).ToString(CultureInfo.InvariantCulture),
+        ((int)PageBox).ToString(CultureInfo.InvariantCulture),
+        ImageSmoothing ? "1" : "0",
+        HighQualityResampling ? "1" : "0",
+        AntiAliasing ? "1" : "0",
+        Format,
+        ColorSpace ?? "",
+        BitsPerComponent?.ToString(CultureInfo.InvariantCulture) ?? "",
+        Quality?.ToString(CultureInfo.InvariantCulture) ?? "");
+
+    /// <summary>
+    /// Checks settings taken from a request, so PDFDraw never allocates an unbounded bitmap or gets an
+    /// unknown encoder. Returns the problem, or null when the settings are valid.
+    /// </summary>
+    public string? Validate()
+    {
+        if (!(Dpi > 0 && Dpi <= MAX_DPI))
+            return $"dpi must be above 0 and at most {MAX_DPI}.";
+        if (Width is int width && (width < 1 || width > MAX_IMAGE_SIZE))
+            return $"width must be between 1 and {MAX_IMAGE_SIZE}.";
+        if (Height is int height && (height < 1 || height > MAX_IMAGE_SIZE))
+            return $"height must be between 1 and {MAX_IMAGE_SIZE}.";
+        if (!FORMATS.Contains(Format))
+            return $"format must be one of {string.Join(", ", FORMATS)}.";
+        if (ColorSpace is not null && !COLOR_SPACES.Contains(ColorSpace))
+            return $"colorspace must be one of {string.Join(", ", COLOR_SPACES)}.";
+        if (BitsPerComponent is int bpc && bpc != 1 && bpc != 8)
+            return "bpc must be 1 or 8.";
+        if (Quality is int quality && (quality < 1 || quality > 100))
+            return "quality must be between 1 and 100.";
+        return null;
+    }
+
+    public void ApplyTo(PDFDraw draw)
+    {
+        if (Width is int width && Height is int height)
+            draw.SetImageSize(width, height);
+        else
+            draw.SetDPI(Dpi);
+        draw.SetRotate(Rotation);
+        draw.SetPageBox(PageBox);
+        draw.SetImageSmoothing(ImageSmoothing, HighQualityResampling);
+        draw.SetAntiAliasing(AntiAliasing);
+    }
+
+    /// <summary>
+    /// Builds the encoder hint dictionary, or null when the defaults apply.
+    /// </summary>
+    public Obj? CreateHints(ObjSet hintSet)
+    {
+        if (ColorSpace is null && BitsPerComponent is null && Quality is null)
+            return null;
+
+        Obj hints = hintSet.CreateDict();
+        if (ColorSpace is not null)
+            hints.PutName("ColorSpace", ColorSpace);
+        if (BitsPerComponent is int bpc)
+            hints.PutNumber("BPC", bpc);
+        if (Quality is int quality)
+            hints.PutNumber("Quality", quality);
+        return hints;
+    }
+}
@@ -0,0 +1,307 @@
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron.Common;
+using pdftron.PDF;
+using System.Collections.Concurrent;
+
+namespace PDFFunctions.Services.Rendering;
+
+/// <summary>
+/// Rasterizes fixed-size BGRA tiles of a page at any zoom level, for deep-zoom viewers. Tiles render
+/// in parallel on pooled PDFRasterizers. Documents opened through <see cref="OpenDocument"/> stay open
+/// between requests, keyed by content hash, and the rasterizer that last drew a page of such a document
+/// keeps its parsed page, so the next tile of that page is only rasterized.
+/// </summary>
+public sealed class TileRenderer : IDisposable
+{
+    public const int BYTES_PER_PIXEL = 4;
+    public const int MAX_TILE_SIZE = 2048;
+    public const double MAX_ZOOM = 64;
+
+    private readonly PDFNetRuntime runtime;
+    private readonly DocumentHasher hasher;
+    private readonly ConcurrentBag<PDFRasterizer> rasterizers = new();
+    private readonly SemaphoreSlim slots;
+    private readonly DisplayListCache<PDFRasterizer> displayLists;
+    private readonly int documentCapacity;
+    private readonly object sync = new();
+    private readonly Dictionary<string, LinkedListNode<CachedDocument>> documents = new();
+    private readonly LinkedList<CachedDocument> lru = new();
+
+    public TileRenderer(IOptions<RenderOptions> options, PDFNetRuntime runtime, DocumentHasher hasher)
+    {
+        this.runtime = runtime;
+        this.hasher = hasher;
+        slots = new SemaphoreSlim(Math.Max(1, options.Value.MaxDegreeOfParallelism ?? Environment.ProcessorCount));
+        displayLists = new DisplayListCache<PDFRasterizer>(Math.Max(1, options.Value.DisplayListCacheSize), rasterizer =>
+        {
+            rasterizer.SetCaching(false);
+            rasterizers.Add(rasterizer);
+        });
+        documentCapacity = Math.Max(1, options.Value.TileDocumentCacheSize);
+    }
+
+    /// <summary>
+    /// Returns the open document for <paramref name="file"/>, opening it on first use. The document is
+    /// shared with other callers and only closed once it is evicted and every lease is disposed.
+    /// </summary>
+    public DocumentLease OpenDocument(string file)
+    {
+        string hash = hasher.GetHash(file);
+        lock (sync)
+        {
+            if (documents.TryGetValue(hash, out var node))
+            {
+                lru.Remove(node);
+                lru.AddFirst(node);
+                return node.Value.Lease();
+            }
+        }
+
+        // Opened outside the lock; when two requests race on a miss the first one to finish is kept.
+        var opened = new CachedDocument(this, hash, file);
+        List<CachedDocument> evicted = new();
+        DocumentLease lease;
+        lock (sync)
+        {
+            if (documents.TryGetValue(hash, out var node))
+            {
+                evicted.Add(opened);
+                lease = node.Value.Lease();
+            }
+            else
+            {
+                documents.Add(hash, lru.AddFirst(opened));
+                lease = opened.Lease();
+                while (documents.Count > documentCapacity)
+                {
+                    var last = lru.Last!.Value;
+                    lru.RemoveLast();
+                    documents.Remove(last.Hash);
+                    evicted.Add(last);
+                }
+            }
+        }
+        evicted.ForEach(document => document.Evict());
+        return lease;
+    }
+
+    /// <summary>
+    /// Keeps parsed pages of <paramref name="doc"/> around until the returned scope is disposed. Documents
+    /// from <see cref="OpenDocument"/> have one already. Dispose it before the document.
+    /// </summary>
+    public IDisposable CacheDisplayLists(PDFDoc doc) => displayLists.Open(doc);
+
+    /// <summary>
+    /// Size of the page in pixels at <paramref name="zoom"/> (1 = 72 DPI) and the number of tiles covering it.
+    /// </summary>
+    public static TileGrid GetGrid(PDFDoc doc, int pageNumber, double zoom, int tileSize, Page.Box box = Page.Box.e_crop)
+    {
+        ArgumentOutOfRangeException.ThrowIfLessThan(tileSize, 1);
+        ArgumentOutOfRangeException.ThrowIfGreaterThan(tileSize, MAX_TILE_SIZE);
+        if (!(zoom > 0 && zoom <= MAX_ZOOM))
+            throw new ArgumentOutOfRangeException(nameof(zoom), zoom, $"Zoom must be above 0 and at most {MAX_ZOOM}.");
+
+        doc.LockRead();
+        try
+        {
+            Page page = doc.GetPage(pageNumber);
+            // Like GetDefaultMatrix, the page width and height take the page rotation into account.
+            int width = (int)Math.Ceiling(page.GetPageWidth(box) * zoom);
+            int height = (int)Math.Ceiling(page.GetPageHeight(box) * zoom);
+            return new TileGrid(width, height, tileSize, (width + tileSize - 1) / tileSize, (height + tileSize - 1) / tileSize, box);
+        }
+        finally
+        {
+            doc.UnlockRead();
+        }
+    }
+
+    /// <summary>
+    /// Renders one tile as BGRA with straight (not premultiplied) alpha, rows of width * 4 bytes. Edge tiles
+    /// are smaller than the tile size. The pixels are the array PDFRasterizer.Rasterize returns, handed over
+    /// as is; the .NET binding has no overload that renders into a caller-owned buffer.
+    /// </summary>
+    public async Task<RenderedTile> RenderTileAsync(PDFDoc doc, int pageNumber, TileGrid grid, int column, int row, double zoom, CancellationToken cancellationToken = default)
+    {
+        var tile = new Tile(column, row,
+            Math.Min(grid.TileSize, grid.Width - column * grid.TileSize),
+            Math.Min(grid.TileSize, grid.Height - row * grid.TileSize));
+        if (tile.Width <= 0 || tile.Height <= 0)
+            throw new ArgumentOutOfRangeException(nameof(column), "Tile is outside the page.");
+
+        await slots.WaitAsync(cancellationToken);
+        try
+        {
+            byte[] pixels = await Task.Run(() => Rasterize(doc, pageNumber, grid, tile, zoom, cancellationToken), cancellationToken);
+            return new RenderedTile(tile, pixels);
+        }
+        finally
+        {
+            slots.Release();
+        }
+    }
+
+    /// <summary>
+    /// Renders every tile of the page in parallel.
+    /// </summary>
+    public IReadOnlyList<Task<RenderedTile>> RenderTiles(PDFDoc doc, int pageNumber, double zoom, int tileSize, CancellationToken cancellationToken = default)
+    {
+        TileGrid grid = GetGrid(doc, pageNumber, zoom, tileSize);
+        var tasks = new List<Task<RenderedTile>>();
+        for (int row = 0; row < grid.Rows; ++row)
+        {
+            for (int column = 0; column < grid.Columns; ++column)
+                tasks.Add(RenderTileAsync(doc, pageNumber, grid, column, row, zoom, cancellationToken));
+        }
+        return tasks;
+    }
+
+    private byte[] Rasterize(PDFDoc doc, int pageNumber, TileGrid grid, Tile tile, double zoom, CancellationToken cancellationToken)
+    {
+        PDFRasterizer rasterizer = Rent(doc, pageNumber);
+        try
+        {
+            byte[] buffer;
+            // A superseded or abandoned tile stops mid-page instead of running to the end.
+            using var registration = cancellationToken.Register(rasterizer.CancelRendering);
+            doc.LockRead();
+            try
+            {
+                Page page = doc.GetPage(pageNumber);
+                // Page space -> device space at the zoom level, shifted so the tile's top-left corner is the origin.
+                using Matrix2D page_mtx = page.GetDefaultMatrix(true, grid.Box);
+                using Matrix2D device_mtx = new Matrix2D(1, 0, 0, 1, -tile.Column * grid.TileSize, -tile.Row * grid.TileSize)
+                    * new Matrix2D(zoom, 0, 0, zoom, 0, 0)
+                    * page_mtx;
+                // demult = true: the alpha is divided out, so the pixels carry straight alpha.
+                buffer = rasterizer.Rasterize(page, tile.Width, tile.Height, tile.Width * BYTES_PER_PIXEL, BYTES_PER_PIXEL, true, device_mtx);
+            }
+            catch (PDFNetException) when (cancellationToken.IsCancellationRequested)
+            {
+                throw new OperationCanceledException(cancellationToken);
+            }
+            finally
+            {
+                doc.UnlockRead();
+            }
+            cancellationToken.ThrowIfCancellationRequested();
+            return buffer;
+        }
+        finally
+        {
+            // A cancelled render may have left a partial display list behind, so it is not kept.
+            if (cancellationToken.IsCancellationRequested || !displayLists.TryAdd(doc, pageNumber, rasterizer))
+            {
+                // The document's scope may also have closed while this rasterizer was drawing.
+                rasterizer.SetCaching(false);
+                rasterizers.Add(rasterizer);
+            }
+        }
+    }
+
+    // Prefers the rasterizer that still holds this page's display list. Caching is only on while the
+    // document has an open scope, so no rasterizer keeps a page of a closed document.
+    private PDFRasterizer Rent(PDFDoc doc, int pageNumber)
+    {
+        if (displayLists.TryTake(doc, pageNumber, out var warm))
+            return warm;
+        PDFRasterizer rasterizer = rasterizers.TryTake(out var pooled) ? pooled : new PDFRasterizer();
+        if (displayLists.IsOpen(doc))
+            rasterizer.SetCaching(true);
+        return rasterizer;
+    }
+
+    public void Dispose()
+    {
+        List<CachedDocument> open;
+        lock (sync)
+        {
+            open = lru.ToList();
+            lru.Clear();
+            documents.Clear();
+        }
+        open.ForEach(document => document.Evict());
+        // Documents still leased keep their scope open; their rasterizers go back to the pool here as well.
+        displayLists.Clear();
+        while (rasterizers.TryTake(out var rasterizer))
+            rasterizer.Dispose();
+        slots.Dispose();
+    }
+
+    /// <summary>
+    /// A cached open document. It holds a runtime lease and a display list scope, and closes when it has
+    /// been evicted and the last lease is released.
+    /// </summary>
+    private sealed class CachedDocument
+    {
+        private readonly IDisposable runtimeLease;
+        private readonly IDisposable displayListScope;
+        private int leases = 1;
+
+        public CachedDocument(TileRenderer owner, string hash, string file)
+        {
+            Hash = hash;
+            runtimeLease = owner.runtime.Acquire();
+            PDFDoc? doc = null;
+            try
+            {
+                doc = new PDFDoc(file);
+                doc.InitSecurityHandler();
+            }
+            catch
+            {
+                doc?.Dispose();
+                runtimeLease.Dispose();
+                throw;
+            }
+            Doc = doc;
+            displayListScope = owner.CacheDisplayLists(doc);
+        }
+
+        public string Hash { get; }
+
+        public PDFDoc Doc { get; }
+
+        // Called under the owner's lock while the document is cached.
+        public DocumentLease Lease()
+        {
+            Interlocked.Increment(ref leases);
+            return new DocumentLease(Doc, Release);
+        }
+
+        // Drops the cache's own lease.
+        public void Evict() => Release();
+
+        private void Release()
+        {
+            if (Interlocked.Decrement(ref leases) > 0)
+                return;
+            displayListScope.Dispose();
+            Doc.Dispose();
+            runtimeLease.Dispose();
+        }
+    }
+}
+
+/// <summary>
+/// A document shared through <see cref="TileRenderer.OpenDocument"/>. Dispose it when done with the document.
+/// </summary>
+public sealed class DocumentLease(PDFDoc doc, Action release) : IDisposable
+{
+    private int disposed;
+
+    public PDFDoc Doc { get; } = doc;
+
+    public void Dispose()
+    {
+        if (Interlocked.Exchange(ref disposed, 1) == 0)
+            release();
+    }
+}
+
+public record TileGrid(int Width, int Height, int TileSize, int Columns, int Rows, Page.Box Box = Page.Box.e_crop);
+
+public record Tile(int Column, int Row, int Width, int Height);
+
+public record RenderedTile(Tile Tile, byte[] Pixels);
@@ -0,0 +1,276 @@
+using Microsoft.Extensions.Logging;
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron.PDF;
+using pdftron.SDF;
+using System.Collections;
+
+namespace PDFFunctions.Services;
+
+/// <summary>
+/// Keeps parsed form templates in memory together with a field name index, evicting the least
+/// recently used template. A template is reloaded when the file on disk changes; concurrent
+/// requests for a template that is not loaded yet share one load.
+/// </summary>
+public sealed class TemplateCache
+{
+    private readonly ILogger logger;
+    private readonly FormsOptions options;
+    private readonly Dictionary<string, LinkedListNode<Entry>> templates = new(StringComparer.OrdinalIgnoreCase);
+    private readonly LinkedList<Entry> lru = new();
+
+    public TemplateCache(ILoggerFactory loggerFactory, IOptions<FormsOptions> options)
+    {
+        this.options = options.Value;
+        logger = loggerFactory.CreateLogger<TemplateCache>();
+    }
+
+    public CompiledTemplate Get(string path)
+    {
+        string fullPath = Path.GetFullPath(path);
+        DateTime lastWriteTimeUtc = File.GetLastWriteTimeUtc(fullPath);
+        Entry entry;
+        List<Entry> retired = new();
+        lock (templates)
+        {
+            if (templates.TryGetValue(fullPath, out var node) && node.Value.LastWriteTimeUtc == lastWriteTimeUtc)
+            {
+                lru.Remove(node);
+                lru.AddFirst(node);
+                entry = node.Value;
+            }
+            else
+            {
+                // The entry is swapped in before it is loaded, so callers racing on a miss wait for the same load.
+                if (node is not null)
+                {
+                    templates.Remove(fullPath);
+                    lru.Remove(node);
+                    retired.Add(node.Value);
+                }
+                entry = new Entry(fullPath, lastWriteTimeUtc, () =>
+                {
+                    var template = CompiledTemplate.Load(fullPath, lastWriteTimeUtc);
+                    logger.LogInformation("Template {0} loaded with {1} field(s).", fullPath, template.FieldCount);
+                    return template;
+                });
+                templates[fullPath] = lru.AddFirst(entry);
+                while (templates.Count > Math.Max(1, options.TemplateCacheSize))
+                {
+                    retired.Add(lru.Last!.Value);
+                    templates.Remove(lru.Last.Value.Path);
+                    lru.RemoveLast();
+                }
+            }
+        }
+        retired.ForEach(Retire);
+
+        try
+        {
+            return entry.Template.Value;
+        }
+        catch
+        {
+            // A failed load is not cached; the next request tries again.
+            lock (templates)
+            {
+                if (templates.TryGetValue(fullPath, out var node) && node.Value == entry)
+                {
+                    templates.Remove(fullPath);
+                    lru.Remove(node);
+                }
+            }
+            throw;
+        }
+    }
+
+    private void Retire(Entry entry)
+    {
+        // Waits for a load that may still be running, so its parsed document is released as well.
+        _ = Task.Run(() =>
+        {
+            try
+            {
+                entry.Template.Value.Retire();
+            }
+            catch (Exception e)
+            {
+                logger.LogInformation("Exception caught retiring template {0}:\n{1}", entry.Path, e);
+            }
+        });
+    }
+
+    private sealed class Entry(string path, DateTime lastWriteTimeUtc, Func<CompiledTemplate> load)
+    {
+        public string Path { get; } = path;
+
+        public DateTime LastWriteTimeUtc { get; } = lastWriteTimeUtc;
+
+        public Lazy<CompiledTemplate> Template { get; } = new(load, LazyThreadSafetyMode.ExecutionAndPublication);
+    }
+}
+
+/// <summary>
+/// A form template parsed once into a master document. Every <see cref="Open"/> deep-copies the
+/// master's already parsed objects into a new in-memory document under a read lock, so requests
+/// never parse the template again. Once the template is retired (replaced or evicted) the master is
+/// released after the copies in progress finish; later copies parse the retained bytes instead.
+/// </summary>
+public sealed class CompiledTemplate
+{
+    private readonly object sync = new();
+    private readonly byte[] content;
+    private readonly string[] indexedNames;
+    private readonly int[] indexedObjNums;
+    private readonly HashSet<string> unindexedFields;
+    private PDFDoc? master;
+    private int copying;
+    private bool retired;
+
+    private CompiledTemplate(string path, DateTime lastWriteTimeUtc, byte[] content, PDFDoc master, Dictionary<string, int> fieldIndex, HashSet<string> unindexedFields)
+    {
+        Path = path;
+        LastWriteTimeUtc = lastWriteTimeUtc;
+        this.content = content;
+        this.master = master;
+        indexedNames = fieldIndex.Keys.ToArray();
+        indexedObjNums = fieldIndex.Values.ToArray();
+        this.unindexedFields = unindexedFields;
+    }
+
+    public string Path { get; }
+
+    public DateTime LastWriteTimeUtc { get; }
+
+    public int FieldCount => indexedNames.Length + unindexedFields.Count;
+
+    /// <summary>
+    /// Returns an independent copy of the template with its field index.
+    /// </summary>
+    public TemplateCopy Open()
+    {
+        PDFDoc? source;
+        lock (sync)
+        {
+            source = master;
+            if (source is not null)
+                copying++;
+        }
+        if (source is null)
+        {
+            PDFDoc parsed = new(content, content.Length);
+            parsed.InitSecurityHandler();
+            return new TemplateCopy(parsed, null, unindexedFields);
+        }
+
+        try
+        {
+            return Copy(source);
+        }
+        finally
+        {
+            lock (sync)
+            {
+                if (--copying == 0 && retired)
+                    Release();
+            }
+        }
+    }
+
+    /// <summary>
+    /// Releases the master document once no copy is being made from it.
+    /// </summary>
+    internal void Retire()
+    {
+        lock (sync)
+        {
+            retired = true;
+            if (copying == 0)
+                Release();
+        }
+    }
+
+    // Must be called under the lock.
+    private void Release()
+    {
+        master?.Dispose();
+        master = null;
+    }
+
+    private TemplateCopy Copy(PDFDoc source)
+    {
+        PDFDoc copy = new();
+        try
+        {
+            var fields = new Dictionary<string, Obj>(indexedNames.Length);
+            source.LockRead();
+            try
+            {
+                // One import keeps objects shared between the catalog and the fields shared in the copy.
+                SDFDoc sourceSdf = source.GetSDFDoc();
+                var objs = new ArrayList(indexedNames.Length + 1) { source.GetRoot() };
+                foreach (int objNum in indexedObjNums)
+                    objs.Add(sourceSdf.GetObj(objNum));
+                ArrayList imported = copy.GetSDFDoc().ImportObjs(objs);
+                copy.GetSDFDoc().GetTrailer().Put("Root", (Obj)imported[0]!);
+                for (int i = 0; i < indexedNames.Length; i++)
+                    fields[indexedNames[i]] = (Obj)imported[i + 1]!;
+            }
+            finally
+            {
+                source.UnlockRead();
+            }
+            return new TemplateCopy(copy, fields, unindexedFields);
+        }
+        catch
+        {
+            copy.Dispose();
+            throw;
+        }
+    }
+
+    internal static CompiledTemplate Load(string path, DateTime lastWriteTimeUtc)
+    {
+        byte[] content = File.ReadAllBytes(path);
+        var fieldIndex = new Dictionary<string, int>();
+        var unindexedFields = new HashSet<string>();
+        PDFDoc master = new(content, content.Length);
+        try
+        {
+            master.InitSecurityHandler();
+            for (FieldIterator itr = master.GetFieldIterator(); itr.HasNext(); itr.Next())
+            {
+                Field field = itr.Current();
+                var obj = field.GetSDFObj();
+                if (obj.IsIndirect())
+                    fieldIndex[field.GetName()] = obj.GetObjNum();
+                else
+                    unindexedFields.Add(field.GetName());
+            }
+        }
+        catch
+        {
+            master.Dispose();
+            throw;
+        }
+        return new CompiledTemplate(path, lastWriteTimeUtc, content, master, fieldIndex, unindexedFields);
+    }
+}
+
+/// <summary>
+/// A document copied from a template, with the template's field index mapped onto the copy.
+/// </summary>
+public sealed class TemplateCopy(PDFDoc doc, Dictionary<string, Obj>? fields, HashSet<string> unindexedFields)
+{
+    public PDFDoc Doc { get; } = doc;
+
+    public Field? GetField(string name)
+    {
+        if (fields is null)
+            return Doc.GetField(name);
+        if (fields.TryGetValue(name, out Obj? obj))
+            return new Field(obj);
+        // Fields stored as direct objects have no object number and use the regular lookup.
+        return unindexedFields.Contains(name) ? Doc.GetField(name) : null;
+    }
+}
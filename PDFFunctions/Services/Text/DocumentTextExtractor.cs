@@ -0,0 +1,188 @@
+using Microsoft.Extensions.Logging;
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron.PDF;
+using System.Collections.Concurrent;
+using System.Text;
+using System.Text.Json;
+
+namespace PDFFunctions.Services.Text;
+
+public enum TextFormat
+{
+    Text,
+    Xml,
+    Json
+}
+
+/// <summary>
+/// Extracts text from whole documents. Pages are fanned out to pooled TextExtractor instances, each
+/// reading its page under a shared read lock, and the output is written in page order as it completes.
+/// </summary>
+public sealed class DocumentTextExtractor : IDisposable
+{
+    private const TextExtractor.XMLOutputFlags XML_FLAGS = TextExtractor.XMLOutputFlags.e_output_bbox | TextExtractor.XMLOutputFlags.e_output_style_info;
+
+    private readonly ILogger logger;
+    private readonly ConcurrentBag<TextExtractor> extractors = new();
+    private readonly SemaphoreSlim slots;
+    private readonly int lookahead;
+
+    public DocumentTextExtractor(ILoggerFactory loggerFactory, IOptions<TextOptions> options)
+    {
+        logger = loggerFactory.CreateLogger<DocumentTextExtractor>();
+        int workers = Math.Max(1, options.Value.MaxDegreeOfParallelism ?? Environment.ProcessorCount);
+        slots = new SemaphoreSlim(workers);
+        lookahead = 2 * workers;
+    }
+
+    /// <summary>
+    /// Runs <paramref name="read"/> with a TextExtractor positioned on the page. The extractor is only
+    /// valid inside the callback, which runs while the document is read locked.
+    /// </summary>
+    public async Task<T> ExtractPageAsync<T>(PDFDoc doc, int pageNumber, Func<TextExtractor, T> read, CancellationToken cancellationToken = default)
+    {
+        await slots.WaitAsync(cancellationToken);
+        try
+        {
+            return await Task.Run(() => Extract(doc, pageNumber, read), cancellationToken);
+        }
+        finally
+        {
+            slots.Release();
+        }
+    }
+
+    /// <summary>
+    /// Reads the words of a page into columns. Dispose the result to return its buffers.
+    /// </summary>
+    public Task<PageWords> ExtractWordsAsync(PDFDoc doc, int pageNumber, CancellationToken cancellationToken = default) =>
+        ExtractPageAsync(doc, pageNumber, extractor => PageWords.Read(extractor, pageNumber), cancellationToken);
+
+    /// <summary>
+    /// Reads the words of every page in parallel and hands them to <paramref name="write"/> in page
+    /// order. Each page is disposed once <paramref name="write"/> completes.
+    /// </summary>
+    public Task ExtractWordsAsync(PDFDoc doc, Func<PageWords, Task> write, CancellationToken cancellationToken = default)
+    {
+        return OrderedPipeline.RunAsync(1, GetPageCount(doc), lookahead,
+            pageNumber => ExtractWordsAsync(doc, pageNumber, cancellationToken),
+            async words =>
+            {
+                using (words)
+                    await write(words);
+            });
+    }
+
+    /// <summary>
+    /// Runs <paramref name="read"/> for every page in parallel and hands the results to
+    /// <paramref name="write"/> in page order.
+    /// </summary>
+    public Task ExtractPagesAsync<T>(PDFDoc doc, Func<TextExtractor, T> read, Func<int, T, Task> write, CancellationToken cancellationToken = default)
+    {
+        return OrderedPipeline.RunAsync(1, GetPageCount(doc), lookahead,
+            async pageNumber => (PageNumber: pageNumber, Result: await ExtractPageAsync(doc, pageNumber, read, cancellationToken)),
+            page => write(page.PageNumber, page.Result));
+    }
+
+    /// <summary>
+    /// Streams the text of the whole document: plain text with pages separated by form feeds, an XML
+    /// document of the per-page XML with bounding boxes and style info, or a JSON object with one entry per page.
+    /// </summary>
+    public async Task ExtractAsync(PDFDoc doc, TextFormat format, Stream output, CancellationToken cancellationToken = default)
+    {
+        switch (format)
+        {
+            case TextFormat.Text:
+            {
+                await using var writer = new StreamWriter(output, new UTF8Encoding(false), leaveOpen: true);
+                await ExtractPagesAsync(doc, extractor => extractor.GetAsText(), async (pageNumber, text) =>
+                {
+                    if (pageNumber > 1)
+                        await writer.WriteAsync('\f');
+                    await writer.WriteAsync(text);
+                }, cancellationToken);
+                break;
+            }
+            case TextFormat.Xml:
+            {
+                await using var writer = new StreamWriter(output, new UTF8Encoding(false), leaveOpen: true);
+                await writer.WriteAsync("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Document>\n");
+                await ExtractPagesAsync(doc, extractor => extractor.GetAsXML(XML_FLAGS), async (pageNumber, xml) =>
+                {
+                    await writer.WriteAsync(xml);
+                    await writer.WriteAsync('\n');
+                }, cancellationToken);
+                await writer.WriteAsync("</Document>\n");
+                break;
+            }
+            case TextFormat.Json:
+            {
+                await using var writer = new Utf8JsonWriter(output);
+                writer.WriteStartObject();
+                writer.WriteStartArray("pages");
+                await ExtractPagesAsync(doc, extractor => extractor.GetAsText(), async (pageNumber, text) =>
+                {
+                    writer.WriteStartObject();
+                    writer.WriteNumber("page", pageNumber);
+                    writer.WriteString("text", text);
+                    writer.WriteEndObject();
+                    await writer.FlushAsync(cancellationToken);
+                }, cancellationToken);
+                writer.WriteEndArray();
+                writer.WriteEndObject();
+                break;
+            }
+            default:
+                throw new ArgumentOutOfRangeException(nameof(format), format, null);
+        }
+    }
+
+    private T Extract<T>(PDFDoc doc, int pageNumber, Func<TextExtractor, T> read)
+    {
+        TextExtractor extractor = extractors.TryTake(out var pooled) ? pooled : new TextExtractor();
+        try
+        {
+            // Other pages of the same document are extracted concurrently under their own read locks.
+            doc.LockRead();
+            try
+            {
+                extractor.Begin(doc.GetPage(pageNumber));
+                return read(extractor);
+            }
+            finally
+            {
+                doc.UnlockRead();
+            }
+        }
+        catch (Exception e)
+        {
+            logger.LogInformation("Exception caught extracting page {0}:\n{1}", pageNumber, e);
+            throw;
+        }
+        finally
+        {
+            extractors.Add(extractor);
+        }
+    }
+
+    private static int GetPageCount(PDFDoc doc)
+    {
+        doc.LockRead();
+        try
+        {
+            return doc.GetPageCount();
+        }
+        finally
+        {
+            doc.UnlockRead();
+        }
+    }
+
+    public void Dispose()
+    {
+        while (extractors.TryTake(out var extractor))
+            extractor.Dispose();
+        slots.Dispose();
+    }
+}
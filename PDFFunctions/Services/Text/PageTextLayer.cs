@@ -0,0 +1,187 @@
+using pdftron.PDF;
+using System.Text;
+
+namespace PDFFunctions.Services.Text;
+
+/// <summary>
+/// Text of one page in reading order with the quad of every character, so search, highlights and
+/// redaction regions can be answered without extracting the page again. Words and lines are both
+/// separated by a space, so a phrase wrapped onto the next line still matches; separators have no quad.
+/// </summary>
+public sealed class PageTextLayer
+{
+    private const int FORMAT_VERSION = 2;
+
+    // Word index of each character, -1 for separators.
+    private readonly int[] charWords;
+    // Quad of each character: lower-left, lower-right, upper-right, upper-left, so rotated text keeps its orientation.
+    private readonly double[] charQuads;
+
+    private PageTextLayer(int pageNumber, string text, int[] charWords, double[] charQuads)
+    {
+        PageNumber = pageNumber;
+        Text = text;
+        this.charWords = charWords;
+        this.charQuads = charQuads;
+    }
+
+    public int PageNumber { get; }
+
+    public string Text { get; }
+
+    /// <summary>
+    /// One quad (8 doubles, lower-left first, as Highlights returns them) per word touched by the range.
+    /// Only the characters inside the range count, so partial words get partial quads. The quad runs from
+    /// the left edge of the first character to the right edge of the last, along the text's direction.
+    /// </summary>
+    public double[] GetQuads(int index, int length)
+    {
+        ArgumentOutOfRangeException.ThrowIfNegative(index);
+        ArgumentOutOfRangeException.ThrowIfGreaterThan(index + length, Text.Length, nameof(length));
+
+        var quads = new List<double>();
+        int word = -1, first = -1, last = -1;
+        void AddQuad()
+        {
+            if (word >= 0)
+            {
+                quads.AddRange([
+                    charQuads[8 * first], charQuads[8 * first + 1],
+                    charQuads[8 * last + 2], charQuads[8 * last + 3],
+                    charQuads[8 * last + 4], charQuads[8 * last + 5],
+                    charQuads[8 * first + 6], charQuads[8 * first + 7]]);
+            }
+        }
+        for (int i = index; i < index + length; i++)
+        {
+            if (charWords[i] < 0)
+                continue;
+            if (charWords[i] != word)
+            {
+                AddQuad();
+                word = charWords[i];
+                first = i;
+            }
+            last = i;
+        }
+        AddQuad();
+        return quads.ToArray();
+    }
+
+    /// <summary>
+    /// The boxes covered by a character range, one per word, in page coordinates as Redactor expects.
+    /// Rotated words get the axis-aligned box around their quad.
+    /// </summary>
+    public List<(double X1, double Y1, double X2, double Y2)> GetRegions(int index, int length) =>
+        ToRegions(GetQuads(index, length));
+
+    public static List<(double X1, double Y1, double X2, double Y2)> ToRegions(double[] quads)
+    {
+        var regions = new List<(double, double, double, double)>();
+        for (int i = 0; i + 8 <= quads.Length; i += 8)
+        {
+            regions.Add((
+                Math.Min(Math.Min(quads[i], quads[i + 2]), Math.Min(quads[i + 4], quads[i + 6])),
+                Math.Min(Math.Min(quads[i + 1], quads[i + 3]), Math.Min(quads[i + 5], quads[i + 7])),
+                Math.Max(Math.Max(quads[i], quads[i + 2]), Math.Max(quads[i + 4], quads[i + 6])),
+                Math.Max(Math.Max(quads[i + 1], quads[i + 3]), Math.Max(quads[i + 5], quads[i + 7]))));
+        }
+        return regions;
+    }
+
+    /// <summary>
+    /// Builds the layer from the page the extractor is positioned on. Characters get their glyph's quad
+    /// when the word has one glyph per character, otherwise the word's quad (e.g. with ligatures).
+    /// </summary>
+    public static PageTextLayer Build(TextExtractor extractor, int pageNumber)
+    {
+        var text = new StringBuilder();
+        var charWords = new List<int>();
+        var charQuads = new List<double>();
+        int wordIndex = 0;
+
+        void AddSeparator(char separator)
+        {
+            text.Append(separator);
+            charWords.Add(-1);
+            charQuads.AddRange([0, 0, 0, 0, 0, 0, 0, 0]);
+        }
+
+        TextExtractor.Line line = extractor.GetFirstLine();
+        try
+        {
+            while (line.IsValid())
+            {
+                if (text.Length > 0)
+                    AddSeparator(' ');
+                TextExtractor.Word word = line.GetFirstWord();
+                try
+                {
+                    bool first = true;
+                    while (word.IsValid())
+                    {
+                        if (!first)
+                            AddSeparator(' ');
+                        first = false;
+
+                        string value = word.GetString();
+                        bool perGlyph = word.GetNumGlyphs() == value.Length;
+                        double[]? wordQuad = perGlyph ? null : word.GetQuad();
+                        for (int i = 0; i < value.Length; i++)
+                        {
+                            text.Append(value[i]);
+                            charWords.Add(wordIndex);
+                            charQuads.AddRange(perGlyph ? word.GetGlyphQuad(i) : wordQuad!);
+                        }
+                        wordIndex++;
+
+                        TextExtractor.Word next = word.GetNextWord();
+                        word.Dispose();
+                        word = next;
+                    }
+                }
+                finally
+                {
+                    word.Dispose();
+                }
+
+                TextExtractor.Line nextLine = line.GetNextLine();
+                line.Dispose();
+                line = nextLine;
+            }
+        }
+        finally
+        {
+            line.Dispose();
+        }
+
+        return new PageTextLayer(pageNumber, text.ToString(), charWords.ToArray(), charQuads.ToArray());
+    }
+
+    public void Write(BinaryWriter writer)
+    {
+        writer.Write(FORMAT_VERSION);
+        writer.Write(PageNumber);
+        writer.Write(Text);
+        foreach (int word in charWords)
+            writer.Write(word);
+        foreach (double value in charQuads)
+            writer.Write(value);
+    }
+
+    public static PageTextLayer Read(BinaryReader reader)
+    {
+        int version = reader.ReadInt32();
+        if (version != FORMAT_VERSION)
+            throw new InvalidDataException($"Unsupported text layer version {version}.");
+        int pageNumber = reader.ReadInt32();
+        string text = reader.ReadString();
+        var charWords = new int[text.Length];
+        for (int i = 0; i < charWords.Length; i++)
+            charWords[i] = reader.ReadInt32();
+        var charQuads = new double[8 * text.Length];
+        for (int i = 0; i < charQuads.Length; i++)
+            charQuads[i] = reader.ReadDouble();
+        return new PageTextLayer(pageNumber, text, charWords, charQuads);
+    }
+}
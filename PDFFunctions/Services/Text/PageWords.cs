@@ -0,0 +1,191 @@
+using pdftron.PDF;
+using System.Buffers;
+
+namespace PDFFunctions.Services.Text;
+
+/// <summary>
+/// Font, size and color of a run of words. Pages usually have a handful of these, so words refer to
+/// them by index into <see cref="PageWords.Styles"/> instead of holding one each.
+/// </summary>
+public readonly record struct WordStyle(string FontName, double FontSize, int Weight, bool Italic, bool Serif, int Color);
+
+/// <summary>
+/// All words of a page in columns: word i has its bounding box at <c>BBoxes[4 * i .. 4 * i + 4]</c>
+/// (x1, y1, x2, y2), its characters at <c>Text[TextOffsets[i] .. TextOffsets[i + 1]]</c> and its
+/// line, flow, paragraph and style at index i of the matching column. The columns are rented from the
+/// shared array pool; dispose the page to return them.
+/// </summary>
+public sealed class PageWords : IDisposable
+{
+    private double[] bboxes;
+    private int[] lineIds;
+    private int[] flowIds;
+    private int[] paragraphIds;
+    private int[] styleIds;
+    private int[] textOffsets;
+    private char[] text;
+    private readonly List<WordStyle> styles = new();
+    private bool disposed;
+
+    private PageWords(int pageNumber, int capacity)
+    {
+        PageNumber = pageNumber;
+        capacity = Math.Max(1, capacity);
+        bboxes = ArrayPool<double>.Shared.Rent(4 * capacity);
+        lineIds = ArrayPool<int>.Shared.Rent(capacity);
+        flowIds = ArrayPool<int>.Shared.Rent(capacity);
+        paragraphIds = ArrayPool<int>.Shared.Rent(capacity);
+        styleIds = ArrayPool<int>.Shared.Rent(capacity);
+        textOffsets = ArrayPool<int>.Shared.Rent(capacity + 1);
+        text = ArrayPool<char>.Shared.Rent(8 * capacity);
+        textOffsets[0] = 0;
+    }
+
+    public int PageNumber { get; }
+
+    public int Count { get; private set; }
+
+    public ReadOnlySpan<double> BBoxes => Checked(bboxes).AsSpan(0, 4 * Count);
+
+    public ReadOnlySpan<int> LineIds => Checked(lineIds).AsSpan(0, Count);
+
+    public ReadOnlySpan<int> FlowIds => Checked(flowIds).AsSpan(0, Count);
+
+    public ReadOnlySpan<int> ParagraphIds => Checked(paragraphIds).AsSpan(0, Count);
+
+    public ReadOnlySpan<int> StyleIds => Checked(styleIds).AsSpan(0, Count);
+
+    public ReadOnlySpan<int> TextOffsets => Checked(textOffsets).AsSpan(0, Count + 1);
+
+    public ReadOnlySpan<char> Text => Checked(text).AsSpan(0, textOffsets[Count]);
+
+    public IReadOnlyList<WordStyle> Styles => styles;
+
+    public ReadOnlySpan<char> GetWord(int index) => Text[textOffsets[index]..textOffsets[index + 1]];
+
+    /// <summary>
+    /// Reads every word of the page the extractor is positioned on. The binding still hands out one
+    /// Line, Word, Rect and Style wrapper per step; they are disposed at once instead of being kept.
+    /// </summary>
+    public static PageWords Read(TextExtractor extractor, int pageNumber)
+    {
+        var page = new PageWords(pageNumber, extractor.GetWordCount());
+        var styleIndex = new Dictionary<WordStyle, int>();
+        try
+        {
+            TextExtractor.Line line = extractor.GetFirstLine();
+            try
+            {
+                for (; line.IsValid(); line = Next(line))
+                {
+                    int lineId = line.GetCurrentNum();
+                    int flowId = line.GetFlowID();
+                    int paragraphId = line.GetParagraphID();
+                    TextExtractor.Word word = line.GetFirstWord();
+                    try
+                    {
+                        for (; word.IsValid(); word = Next(word))
+                        {
+                            int styleId;
+                            using (TextExtractor.Style style = word.GetStyle())
+                            {
+                                int[] rgb = style.GetColor();
+                                var key = new WordStyle(style.GetFontName(), style.GetFontSize(), style.GetWeight(), style.IsItalic(), style.IsSerif(),
+                                    rgb.Length >= 3 ? rgb[0] << 16 | rgb[1] << 8 | rgb[2] : 0);
+                                if (!styleIndex.TryGetValue(key, out styleId))
+                                {
+                                    styleId = page.styles.Count;
+                                    styleIndex.Add(key, styleId);
+                                    page.styles.Add(key);
+                                }
+                            }
+
+                            using Rect bbox = word.GetBBox();
+                            page.Add(bbox, lineId, flowId, paragraphId, styleId, word.GetString());
+                        }
+                    }
+                    finally
+                    {
+                        word.Dispose();
+                    }
+                }
+            }
+            finally
+            {
+                line.Dispose();
+            }
+            return page;
+        }
+        catch
+        {
+            page.Dispose();
+            throw;
+        }
+    }
+
+    private void Add(Rect bbox, int lineId, int flowId, int paragraphId, int styleId, string word)
+    {
+        int index = Count;
+        int start = textOffsets[index];
+        // The columns are sized from GetWordCount up front; they only grow if the page walk finds more words.
+        EnsureCapacity(ref bboxes, 4 * index + 4, 4 * index);
+        EnsureCapacity(ref lineIds, index + 1, index);
+        EnsureCapacity(ref flowIds, index + 1, index);
+        EnsureCapacity(ref paragraphIds, index + 1, index);
+        EnsureCapacity(ref styleIds, index + 1, index);
+        EnsureCapacity(ref textOffsets, index + 2, index + 1);
+        EnsureCapacity(ref text, start + word.Length, start);
+
+        bboxes[4 * index] = bbox.x1;
+        bboxes[4 * index + 1] = bbox.y1;
+        bboxes[4 * index + 2] = bbox.x2;
+        bboxes[4 * index + 3] = bbox.y2;
+        lineIds[index] = lineId;
+        flowIds[index] = flowId;
+        paragraphIds[index] = paragraphId;
+        styleIds[index] = styleId;
+        word.CopyTo(0, text, start, word.Length);
+        textOffsets[index + 1] = start + word.Length;
+        Count++;
+    }
+
+    private static void EnsureCapacity<T>(ref T[] array, int needed, int used)
+    {
+        if (needed <= array.Length)
+            return;
+        T[] larger = ArrayPool<T>.Shared.Rent(Math.Max(needed, 2 * array.Length));
+        Array.Copy(array, larger, used);
+        ArrayPool<T>.Shared.Return(array);
+        array = larger;
+    }
+
+    private static TextExtractor.Line Next(TextExtractor.Line line)
+    {
+        TextExtractor.Line next = line.GetNextLine();
+        line.Dispose();
+        return next;
+    }
+
+    private static TextExtractor.Word Next(TextExtractor.Word word)
+    {
+        TextExtractor.Word next = word.GetNextWord();
+        word.Dispose();
+        return next;
+    }
+
+    private T[] Checked<T>(T[] array) => disposed ? throw new ObjectDisposedException(nameof(PageWords)) : array;
+
+    public void Dispose()
+    {
+        if (disposed)
+            return;
+        disposed = true;
+        ArrayPool<double>.Shared.Return(bboxes);
+        ArrayPool<int>.Shared.Return(lineIds);
+        ArrayPool<int>.Shared.Return(flowIds);
+        ArrayPool<int>.Shared.Return(paragraphIds);
+        ArrayPool<int>.Shared.Return(styleIds);
+        ArrayPool<int>.Shared.Return(textOffsets);
+        ArrayPool<char>.Shared.Return(text);
+    }
+}
@@ -0,0 +1,112 @@
+namespace PDFFunctions.Services.Text;
+
+public readonly record struct TermMatch(int Term, int Index, int Length);
+
+/// <summary>
+/// Aho-Corasick automaton over a fixed set of terms. One left-to-right scan of a text reports every
+/// occurrence of every term, so the cost of a sweep does not grow with the number of terms.
+/// Build it once per term list and share it; scanning does not modify it.
+/// </summary>
+public sealed class TermMatcher
+{
+    private readonly string[] terms;
+    private readonly bool ignoreCase;
+    private readonly bool wholeWords;
+    private readonly List<Dictionary<char, int>> next = new();
+    private readonly List<int> fail = new();
+    // Term ending at the node, or -1.
+    private readonly List<int> output = new();
+    // Nearest node on the fail chain that ends a term, or -1.
+    private readonly List<int> outputLink = new();
+
+    public TermMatcher(IEnumerable<string> terms, bool ignoreCase = true, bool wholeWords = true)
+    {
+        this.terms = terms.Where(term => term.Length > 0).Distinct(ignoreCase ? StringComparer.OrdinalIgnoreCase : StringComparer.Ordinal).ToArray();
+        this.ignoreCase = ignoreCase;
+        this.wholeWords = wholeWords;
+
+        AddNode();
+        for (int i = 0; i < this.terms.Length; i++)
+        {
+            int node = 0;
+            foreach (char c in this.terms[i])
+            {
+                char key = Fold(c);
+                if (!next[node].TryGetValue(key, out int child))
+                {
+                    child = AddNode();
+                    next[node].Add(key, child);
+                }
+                node = child;
+            }
+            output[node] = i;
+        }
+        BuildLinks();
+    }
+
+    public int Count => terms.Length;
+
+    public string this[int term] => terms[term];
+
+    /// <summary>
+    /// Returns every occurrence of every term in <paramref name="text"/>, ordered by where it ends.
+    /// Overlapping occurrences are all reported.
+    /// </summary>
+    public List<TermMatch> Scan(ReadOnlySpan<char> text)
+    {
+        var matches = new List<TermMatch>();
+        int node = 0;
+        for (int i = 0; i < text.Length; i++)
+        {
+            char key = Fold(text[i]);
+            int child;
+            while (!next[node].TryGetValue(key, out child) && node != 0)
+                node = fail[node];
+            node = next[node].TryGetValue(key, out child) ? child : 0;
+
+            for (int hit = output[node] >= 0 ? node : outputLink[node]; hit >= 0; hit = outputLink[hit])
+            {
+                int length = terms[output[hit]].Length;
+                int start = i - length + 1;
+                if (!wholeWords || IsWord(text, start, length))
+                    matches.Add(new TermMatch(output[hit], start, length));
+            }
+        }
+        return matches;
+    }
+
+    private static bool IsWord(ReadOnlySpan<char> text, int start, int length)
+    {
+        int end = start + length;
+        return (start == 0 || !char.IsLetterOrDigit(text[start - 1])) && (end == text.Length || !char.IsLetterOrDigit(text[end]));
+    }
+
+    private char Fold(char c) => ignoreCase ? char.ToLowerInvariant(c) : c;
+
+    private int AddNode()
+    {
+        next.Add(new Dictionary<char, int>());
+        fail.Add(0);
+        output.Add(-1);
+        outputLink.Add(-1);
+        return next.Count - 1;
+    }
+
+    // Breadth-first, so every node's fail target is finished before its children need it.
+    private void BuildLinks()
+    {
+        var queue = new Queue<int>(next[0].Values);
+        while (queue.TryDequeue(out int node))
+        {
+            foreach (var (key, child) in next[node])
+            {
+                int target = fail[node];
+                while (target != 0 && !next[target].ContainsKey(key))
+                    target = fail[target];
+                fail[child] = next[target].TryGetValue(key, out int link) && link != child ? link : 0;
+                outputLink[child] = output[fail[child]] >= 0 ? fail[child] : outputLink[fail[child]];
+                queue.Enqueue(child);
+            }
+        }
+    }
+}
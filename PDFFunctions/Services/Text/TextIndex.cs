@@ -0,0 +1,809 @@
+using Microsoft.Extensions.Logging;
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron.PDF;
+using System.Text;
+using System.Text.Json;
+
+namespace PDFFunctions.Services.Text;
+
+public record IndexedDocument(string Hash, string File, int Pages);
+
+/// <summary>
+/// One match: the page and one quad (8 doubles, as Highlights returns them) per matched word.
+/// </summary>
+public record IndexHit(string DocumentHash, string File, int PageNumber, double[] Quads);
+
+/// <summary>
+/// Persistent inverted index over a collection of PDFs, identified by content hash. Most documents live
+/// in one merged main file: a sorted global term dictionary and, per term, the postings (page, word
+/// position and word box) of every document containing it, stored together. Only the dictionary's
+/// term offsets and the document table are kept in memory, so a term is one seek and one contiguous read
+/// however many documents contain it. Newly added documents first get a small segment file of their own;
+/// once <see cref="TextOptions.IndexMergeThreshold"/> of them are pending, or on <see cref="CompactAsync"/>,
+/// they are merged into a new main file, which also drops removed and replaced documents.
+/// </summary>
+public sealed class TextIndex
+{
+    private const int SEGMENT_VERSION = 2;
+    private const int MAIN_VERSION = 1;
+    private const string MANIFEST = "manifest.json";
+
+    private readonly ILogger logger;
+    private readonly DocumentTextExtractor textExtractor;
+    private readonly DocumentHasher hasher;
+    private readonly string? directory;
+    private readonly int mergeThreshold;
+    private readonly SemaphoreSlim writeLock = new(1, 1);
+    private readonly object sync = new();
+    private readonly Dictionary<string, IndexedDocument> documents = new();
+    // Term directories of documents that are not merged yet, by document hash.
+    private readonly Dictionary<string, Dictionary<string, TermLocation>> pending = new();
+    private MainIndex? main;
+    private bool loaded;
+
+    public TextIndex(ILoggerFactory loggerFactory, IOptions<TextOptions> options, DocumentTextExtractor textExtractor, DocumentHasher hasher)
+    {
+        logger = loggerFactory.CreateLogger<TextIndex>();
+        directory = string.IsNullOrWhiteSpace(options.Value.IndexDirectory) ? null : options.Value.IndexDirectory;
+        mergeThreshold = Math.Max(1, options.Value.IndexMergeThreshold);
+        this.textExtractor = textExtractor;
+        this.hasher = hasher;
+    }
+
+    public bool IsEnabled => directory is not null;
+
+    public IReadOnlyList<IndexedDocument> Documents
+    {
+        get
+        {
+            EnsureLoaded();
+            lock (sync)
+            {
+                return documents.Values.ToList();
+            }
+        }
+    }
+
+    /// <summary>
+    /// Lower-cases a word and trims surrounding punctuation. Returns null for words without letters or digits.
+    /// </summary>
+    public static string? Normalize(ReadOnlySpan<char> word)
+    {
+        int start = 0, end = word.Length;
+        while (start < end && !char.IsLetterOrDigit(word[start]))
+            start++;
+        while (end > start && !char.IsLetterOrDigit(word[end - 1]))
+            end--;
+        if (start == end)
+            return null;
+        return word[start..end].ToString().ToLowerInvariant();
+    }
+
+    /// <summary>
+    /// Indexes the file unless a document with the same content is indexed already. The file's previous
+    /// content, if indexed, is removed. Returns false when nothing had to be done.
+    /// </summary>
+    public async Task<bool> AddAsync(string file, CancellationToken cancellationToken = default)
+    {
+        string root = directory ?? throw new InvalidOperationException("Text index directory is not configured.");
+        EnsureLoaded();
+        string hash = hasher.GetHash(file);
+        string fullName = Path.GetFullPath(file);
+
+        await writeLock.WaitAsync(cancellationToken);
+        try
+        {
+            IndexedDocument? replaced;
+            Manifest? manifest = null;
+            lock (sync)
+            {
+                replaced = documents.Values.FirstOrDefault(document => string.Equals(document.File, fullName, StringComparison.OrdinalIgnoreCase));
+                if (replaced?.Hash == hash)
+                    return false;
+                if (documents.ContainsKey(hash))
+                {
+                    // The file now holds content indexed under another path; only its old content goes.
+                    if (replaced is null)
+                        return false;
+                    Remove(replaced);
+                    manifest = CreateManifest();
+                }
+            }
+            if (manifest is not null)
+            {
+                WriteManifest(root, manifest);
+                DeleteSegment(replaced!.Hash);
+                return true;
+            }
+
+            var postings = new SortedDictionary<string, List<Posting>>(StringComparer.Ordinal);
+            int pages;
+            using (PDFDoc doc = new(file))
+            {
+                doc.InitSecurityHandler();
+                pages = doc.GetPageCount();
+                await textExtractor.ExtractWordsAsync(doc, words =>
+                {
+                    ReadOnlySpan<double> bboxes = words.BBoxes;
+                    // Positions count indexed words only, so punctuation between two words does not break a phrase.
+                    int position = 0;
+                    for (int i = 0; i < words.Count; i++)
+                    {
+                        string? term = Normalize(words.GetWord(i));
+                        if (term is null)
+                            continue;
+                        if (!postings.TryGetValue(term, out var list))
+                            postings.Add(term, list = new List<Posting>());
+                        list.Add(new Posting(words.PageNumber, position++, bboxes[4 * i], bboxes[4 * i + 1], bboxes[4 * i + 2], bboxes[4 * i + 3]));
+                    }
+                    return Task.CompletedTask;
+                }, cancellationToken);
+            }
+
+            var termDirectory = WriteSegment(GetSegmentPath(hash), postings);
+            bool compact;
+            lock (sync)
+            {
+                if (replaced is not null)
+                    Remove(replaced);
+                documents.Add(hash, new IndexedDocument(hash, fullName, pages));
+                pending[hash] = termDirectory;
+                manifest = CreateManifest();
+                compact = pending.Count >= mergeThreshold;
+            }
+            WriteManifest(root, manifest);
+            if (replaced is not null)
+                DeleteSegment(replaced.Hash);
+            if (compact)
+            {
+                // The document is indexed either way; a failed merge leaves it pending for the next one.
+                try
+                {
+                    Compact(root);
+                }
+                catch (Exception e) when (e is IOException or InvalidDataException or UnauthorizedAccessException)
+                {
+                    logger.LogInformation("Exception caught merging the text index:\n{0}", e);
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            writeLock.Release();
+        }
+    }
+
+    /// <summary>
+    /// Removes documents whose file no longer exists. Returns the number removed. Their postings in the
+    /// main file are skipped by queries until the next merge drops them.
+    /// </summary>
+    public async Task<int> RemoveMissingAsync(CancellationToken cancellationToken = default)
+    {
+        string root = directory ?? throw new InvalidOperationException("Text index directory is not configured.");
+        EnsureLoaded();
+        await writeLock.WaitAsync(cancellationToken);
+        try
+        {
+            List<IndexedDocument> missing;
+            Manifest manifest;
+            lock (sync)
+            {
+                missing = documents.Values.Where(document => !File.Exists(document.File)).ToList();
+                if (missing.Count == 0)
+                    return 0;
+                missing.ForEach(Remove);
+                manifest = CreateManifest();
+            }
+            WriteManifest(root, manifest);
+            foreach (var document in missing)
+                DeleteSegment(document.Hash);
+            return missing.Count;
+        }
+        finally
+        {
+            writeLock.Release();
+        }
+    }
+
+    /// <summary>
+    /// Merges pending documents into a new main file and drops removed ones, if there are any.
+    /// </summary>
+    public async Task CompactAsync(CancellationToken cancellationToken = default)
+    {
+        string root = directory ?? throw new InvalidOperationException("Text index directory is not configured.");
+        EnsureLoaded();
+        await writeLock.WaitAsync(cancellationToken);
+        try
+        {
+            Compact(root);
+        }
+        finally
+        {
+            writeLock.Release();
+        }
+    }
+
+    /// <summary>
+    /// Answers a query: <c>word</c> for a term, <c>"several words"</c> for a phrase, or <c>prefix*</c>
+    /// for every term starting with the prefix.
+    /// </summary>
+    public IReadOnlyList<IndexHit> Search(string query, int maxHits = 1000)
+    {
+        EnsureLoaded();
+        query = query.Trim();
+        if (query.Length > 1 && query.StartsWith('"') && query.EndsWith('"'))
+        {
+            var phrase = query[1..^1].Split(' ', StringSplitOptions.RemoveEmptyEntries).Select(word => Normalize(word)).OfType<string>().ToList();
+            return phrase.Count == 0 ? [] : SearchPhrase(phrase, maxHits);
+        }
+        if (query.EndsWith('*'))
+        {
+            string? prefix = Normalize(query[..^1]);
+            return prefix is null ? [] : SearchTerms(GetTermsWithPrefix(prefix), maxHits);
+        }
+        string? term = Normalize(query);
+        return term is null ? [] : SearchTerms([term], maxHits);
+    }
+
+    private List<IndexHit> SearchTerms(IReadOnlyCollection<string> matching, int maxHits)
+    {
+        var hits = new List<IndexHit>();
+        foreach (var (document, postings) in GetPostings(matching, all: false))
+        {
+            foreach (var page in postings.Values.SelectMany(list => list).GroupBy(posting => posting.Page).OrderBy(group => group.Key))
+            {
+                hits.Add(new IndexHit(document.Hash, document.File, page.Key, page.OrderBy(posting => posting.Position).SelectMany(posting => posting.ToQuad()).ToArray()));
+                if (hits.Count >= maxHits)
+                    return hits;
+            }
+        }
+        return hits;
+    }
+
+    private List<IndexHit> SearchPhrase(IReadOnlyList<string> phrase, int maxHits)
+    {
+        var hits = new List<IndexHit>();
+        foreach (var (document, postings) in GetPostings(phrase.Distinct().ToList(), all: true))
+        {
+            var positions = postings.ToDictionary(pair => pair.Key, pair => pair.Value.ToDictionary(posting => (posting.Page, posting.Position)));
+            // Every occurrence of the first word starts a candidate; the next words must follow it on the same page.
+            foreach (var first in postings[phrase[0]].OrderBy(posting => posting.Page).ThenBy(posting => posting.Position))
+            {
+                var quads = new List<double>(first.ToQuad());
+                bool match = true;
+                for (int i = 1; i < phrase.Count && match; i++)
+                {
+                    match = positions[phrase[i]].TryGetValue((first.Page, first.Position + i), out var next);
+                    if (match)
+                        quads.AddRange(next.ToQuad());
+                }
+                if (!match)
+                    continue;
+                hits.Add(new IndexHit(document.Hash, document.File, first.Page, quads.ToArray()));
+                if (hits.Count >= maxHits)
+                    return hits;
+            }
+        }
+        return hits;
+    }
+
+    private List<string> GetTermsWithPrefix(string prefix)
+    {
+        lock (sync)
+        {
+            var matching = new SortedSet<string>(main?.GetTermsWithPrefix(prefix) ?? [], StringComparer.Ordinal);
+            foreach (var termDirectory in pending.Values)
+                matching.UnionWith(termDirectory.Keys.Where(term => term.StartsWith(prefix, StringComparison.Ordinal)));
+            return matching.ToList();
+        }
+    }
+
+    // Postings of the live documents containing any (or all) of the terms, ordered by file. The main file
+    // and the pending segments are read outside the lock, from the state the query started with.
+    private List<(IndexedDocument Document, Dictionary<string, List<Posting>> Postings)> GetPostings(IReadOnlyCollection<string> matching, bool all)
+    {
+        MainIndex? snapshot;
+        List<(string Hash, Dictionary<string, TermLocation> Locations)> segments;
+        lock (sync)
+        {
+            snapshot = main;
+            segments = pending
+                .Select(pair => (pair.Key, matching.Where(pair.Value.ContainsKey).ToDictionary(term => term, term => pair.Value[term], StringComparer.Ordinal)))
+                .Where(pair => pair.Item2.Count > 0)
+                .ToList();
+        }
+
+        var byDocument = new Dictionary<string, Dictionary<string, List<Posting>>>();
+        if (snapshot is not null)
+        {
+            using FileStream? stream = snapshot.TryOpen();
+            if (stream is not null)
+            {
+                using var reader = new BinaryReader(stream, Encoding.UTF8);
+                foreach (string term in matching)
+                {
+                    if (!snapshot.TryGetOffset(term, out long offset))
+                        continue;
+                    foreach (var (ordinal, postings) in MainIndex.ReadBlock(reader, offset))
+                    {
+                        string hash = snapshot.Documents[ordinal];
+                        if (!byDocument.TryGetValue(hash, out var found))
+                            byDocument.Add(hash, found = new Dictionary<string, List<Posting>>(StringComparer.Ordinal));
+                        found.Add(term, postings);
+                    }
+                }
+            }
+        }
+        var pendingHashes = new HashSet<string>();
+        foreach (var (hash, locations) in segments)
+        {
+            var postings = ReadPostings(hash, locations);
+            if (postings is null)
+                continue;
+            // A pending document replaces any older copy of the same content in the main file.
+            byDocument[hash] = postings;
+            pendingHashes.Add(hash);
+        }
+
+        lock (sync)
+        {
+            return byDocument
+                .Where(pair => (!all || pair.Value.Count == matching.Count) && documents.ContainsKey(pair.Key)
+                    && (pendingHashes.Contains(pair.Key) || !pending.ContainsKey(pair.Key)))
+                .Select(pair => (documents[pair.Key], pair.Value))
+                .OrderBy(pair => pair.Item1.File, StringComparer.Ordinal)
+                .ToList();
+        }
+    }
+
+    // Must be called under the lock.
+    private void Remove(IndexedDocument document)
+    {
+        documents.Remove(document.Hash);
+        pending.Remove(document.Hash);
+    }
+
+    // Must be called under the lock; the manifest is written outside it.
+    private Manifest CreateManifest() =>
+        new(main?.Generation ?? 0, documents.Values.OrderBy(document => document.File, StringComparer.Ordinal).ToList());
+
+    // Must be called with the write lock held, so documents and pending segments do not change meanwhile.
+    private void Compact(string root)
+    {
+        MainIndex? previous;
+        List<string> kept;
+        List<(string Hash, Dictionary<string, TermLocation> Terms)> segments;
+        lock (sync)
+        {
+            previous = main;
+            kept = previous?.Documents.Where(hash => documents.ContainsKey(hash) && !pending.ContainsKey(hash)).ToList() ?? [];
+            if (pending.Count == 0 && kept.Count == (previous?.Documents.Length ?? 0))
+                return;
+            segments = pending.Select(pair => (pair.Key, pair.Value)).ToList();
+        }
+
+        int generation = (previous?.Generation ?? 0) + 1;
+        string path = GetMainPath(generation);
+        var newOrdinals = new Dictionary<string, int>();
+        foreach (string hash in kept.Concat(segments.Select(segment => segment.Hash)))
+            newOrdinals.Add(hash, newOrdinals.Count);
+        var segmentTerms = new SortedSet<string>(segments.SelectMany(segment => segment.Terms.Keys), StringComparer.Ordinal);
+
+        var readers = new List<BinaryReader>();
+        try
+        {
+            BinaryReader? previousReader = null;
+            if (previous is not null)
+            {
+                readers.Add(previousReader = new BinaryReader(previous.TryOpen() ?? throw new FileNotFoundException("Main index file is missing.", previous.Path), Encoding.UTF8));
+            }
+            var segmentReaders = new List<BinaryReader?>(segments.Count);
+            foreach (var segment in segments)
+            {
+                FileStream? stream = TryOpenSegment(segment.Hash);
+                if (stream is null)
+                    logger.LogInformation("Index segment {0} is missing and is merged without postings.", segment.Hash);
+                segmentReaders.Add(stream is null ? null : new BinaryReader(stream, Encoding.UTF8));
+                if (stream is not null)
+                    readers.Add(segmentReaders[^1]!);
+            }
+
+            string temp = $"{path}.{Guid.NewGuid():N}.tmp";
+            using (var stream = new FileStream(temp, FileMode.CreateNew, FileAccess.Write))
+            using (var writer = new BinaryWriter(stream, Encoding.UTF8))
+            {
+                // Layout: version, offset of the dictionary, the postings blocks, then the dictionary: the
+                // document hashes by ordinal and the sorted terms with the offset of their block.
+                writer.Write(MAIN_VERSION);
+                writer.Write(0L);
+                var dictionary = new List<(string Term, long Offset)>();
+                foreach (string term in MergeSorted(previous?.Terms ?? [], segmentTerms))
+                {
+                    var blocks = new List<(int Ordinal, List<Posting> Postings)>();
+                    if (previous is not null && previous.TryGetOffset(term, out long offset))
+                    {
+                        foreach (var (ordinal, postings) in MainIndex.ReadBlock(previousReader!, offset))
+                        {
+                            if (newOrdinals.TryGetValue(previous.Documents[ordinal], out int newOrdinal) && newOrdinal < kept.Count)
+                                blocks.Add((newOrdinal, postings));
+                        }
+                    }
+                    for (int i = 0; i < segments.Count; i++)
+                    {
+                        if (segmentReaders[i] is BinaryReader segmentReader && segments[i].Terms.TryGetValue(term, out var location))
+                            blocks.Add((kept.Count + i, ReadPostings(segmentReader, location)));
+                    }
+                    if (blocks.Count == 0)
+                        continue;
+
+                    dictionary.Add((term, stream.Position));
+                    writer.Write(blocks.Count);
+                    foreach (var (ordinal, postings) in blocks)
+                    {
+                        writer.Write(ordinal);
+                        writer.Write(postings.Count);
+                        foreach (var posting in postings)
+                            posting.Write(writer);
+                    }
+                }
+
+                long dictionaryOffset = stream.Position;
+                writer.Write(newOrdinals.Count);
+                foreach (string hash in newOrdinals.Keys)
+                    writer.Write(hash);
+                writer.Write(dictionary.Count);
+                foreach (var (term, offset) in dictionary)
+                {
+                    writer.Write(term);
+                    writer.Write(offset);
+                }
+                stream.Position = sizeof(int);
+                writer.Write(dictionaryOffset);
+            }
+            File.Move(temp, path, true);
+        }
+        finally
+        {
+            readers.ForEach(reader => reader.Dispose());
+        }
+
+        MainIndex merged = MainIndex.Open(path, generation);
+        Manifest manifest;
+        lock (sync)
+        {
+            main = merged;
+            foreach (var segment in segments)
+                pending.Remove(segment.Hash);
+            manifest = CreateManifest();
+        }
+        WriteManifest(root, manifest);
+        logger.LogInformation("Text index merged {0} pending document(s) into generation {1} with {2} document(s) and {3} term(s).",
+            segments.Count, generation, merged.Documents.Length, merged.Terms.Length);
+        if (previous is not null)
+            TryDelete(previous.Path);
+        foreach (var segment in segments)
+            DeleteSegment(segment.Hash);
+    }
+
+    private static IEnumerable<string> MergeSorted(IReadOnlyList<string> first, SortedSet<string> second)
+    {
+        int i = 0;
+        foreach (string term in second)
+        {
+            int order;
+            while (i < first.Count && (order = string.CompareOrdinal(first[i], term)) <= 0)
+            {
+                if (order < 0)
+                    yield return first[i];
+                i++;
+            }
+            yield return term;
+        }
+        while (i < first.Count)
+            yield return first[i++];
+    }
+
+    private void EnsureLoaded()
+    {
+        if (directory is null)
+            throw new InvalidOperationException("Text index directory is not configured.");
+        lock (sync)
+        {
+            if (loaded)
+                return;
+            Directory.CreateDirectory(Path.Combine(directory, "segments"));
+            Manifest? manifest = ReadManifest();
+            if (manifest is not null)
+            {
+                if (manifest.Generation > 0)
+                {
+                    try
+                    {
+                        main = MainIndex.Open(GetMainPath(manifest.Generation), manifest.Generation);
+                    }
+                    catch (Exception e)
+                    {
+                        // Its documents are dropped and indexed again on the next add.
+                        logger.LogInformation("Exception caught loading main index {0}:\n{1}", manifest.Generation, e);
+                    }
+                }
+                var merged = new HashSet<string>(main?.Documents ?? []);
+                foreach (var document in manifest.Documents)
+                {
+                    try
+                    {
+                        // A document with a segment of its own is pending, even if older postings of it are merged.
+                        string segment = GetSegmentPath(document.Hash);
+                        if (File.Exists(segment))
+                            pending.Add(document.Hash, ReadDirectory(segment));
+                        else if (!merged.Contains(document.Hash))
+                            continue;
+                        documents.Add(document.Hash, document);
+                    }
+                    catch (Exception e)
+                    {
+                        // A damaged segment only drops its document; it is indexed again on the next add.
+                        logger.LogInformation("Exception caught loading index segment {0}:\n{1}", document.Hash, e);
+                    }
+                }
+            }
+            foreach (string segment in Directory.EnumerateFiles(Path.Combine(directory, "segments")))
+            {
+                if (!pending.ContainsKey(Path.GetFileNameWithoutExtension(segment)))
+                    TryDelete(segment);
+            }
+            foreach (string file in Directory.EnumerateFiles(directory, "main.*"))
+            {
+                if (file != main?.Path)
+                    TryDelete(file);
+            }
+            loaded = true;
+        }
+    }
+
+    private Manifest? ReadManifest()
+    {
+        string manifest = Path.Combine(directory!, MANIFEST);
+        if (!File.Exists(manifest))
+            return null;
+        try
+        {
+            return JsonSerializer.Deserialize<Manifest>(File.ReadAllText(manifest));
+        }
+        catch (JsonException e)
+        {
+            // An unreadable manifest (or one of an older layout) starts the index over.
+            logger.LogInformation("Exception caught reading index manifest:\n{0}", e);
+            return null;
+        }
+    }
+
+    // Called outside the lock; writers hold the write lock, so manifests are written in order.
+    private static void WriteManifest(string root, Manifest manifest)
+    {
+        string path = Path.Combine(root, MANIFEST);
+        string temp = $"{path}.{Guid.NewGuid():N}.tmp";
+        File.WriteAllText(temp, JsonSerializer.Serialize(manifest));
+        File.Move(temp, path, true);
+    }
+
+    private string GetSegmentPath(string hash) => Path.Combine(directory!, "segments", hash + ".seg");
+
+    private string GetMainPath(int generation) => Path.Combine(directory!, $"main.{generation}.idx");
+
+    private void DeleteSegment(string hash) => TryDelete(GetSegmentPath(hash));
+
+    // A file that cannot be deleted now is not referenced by the manifest any more and is removed on the next load.
+    private void TryDelete(string path)
+    {
+        try
+        {
+            File.Delete(path);
+        }
+        catch (Exception e) when (e is IOException or UnauthorizedAccessException)
+        {
+            logger.LogInformation("Exception caught deleting index file {0}:\n{1}", path, e);
+        }
+    }
+
+    // Segment layout: version, term count, then per term (name, posting count, offset of its postings),
+    // followed by the postings themselves as (page, position, x1, y1, x2, y2). Returns the directory.
+    private static Dictionary<string, TermLocation> WriteSegment(string path, SortedDictionary<string, List<Posting>> postings)
+    {
+        var termDirectory = new Dictionary<string, TermLocation>(postings.Count, StringComparer.Ordinal);
+        string temp = path + ".tmp";
+        using (var stream = new FileStream(temp, FileMode.Create, FileAccess.Write))
+        using (var writer = new BinaryWriter(stream, Encoding.UTF8))
+        {
+            writer.Write(SEGMENT_VERSION);
+            writer.Write(postings.Count);
+            long directoryStart = stream.Position;
+            foreach (var (term, list) in postings)
+            {
+                writer.Write(term);
+                writer.Write(list.Count);
+                writer.Write(0L);
+            }
+
+            var offsets = new List<long>(postings.Count);
+            foreach (var list in postings.Values)
+            {
+                offsets.Add(stream.Position);
+                foreach (var posting in list)
+                    posting.Write(writer);
+            }
+
+            // Second pass over the directory now that the posting offsets are known.
+            stream.Position = directoryStart;
+            int index = 0;
+            foreach (var (term, list) in postings)
+            {
+                writer.Write(term);
+                writer.Write(list.Count);
+                writer.Write(offsets[index]);
+                termDirectory.Add(term, new TermLocation(list.Count, offsets[index++]));
+            }
+        }
+        File.Move(temp, path, true);
+        return termDirectory;
+    }
+
+    private static Dictionary<string, TermLocation> ReadDirectory(string path)
+    {
+        using var stream = new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read);
+        using var reader = new BinaryReader(stream, Encoding.UTF8);
+        int version = reader.ReadInt32();
+        if (version != SEGMENT_VERSION)
+            throw new InvalidDataException($"Unsupported index segment version {version}.");
+        int count = reader.ReadInt32();
+        var termDirectory = new Dictionary<string, TermLocation>(count, StringComparer.Ordinal);
+        for (int i = 0; i < count; i++)
+            termDirectory.Add(reader.ReadString(), new TermLocation(reader.ReadInt32(), reader.ReadInt64()));
+        return termDirectory;
+    }
+
+    // Seeks to each wanted term's postings. Returns null when the segment is gone because the document
+    // was replaced, removed or merged while the query ran.
+    private Dictionary<string, List<Posting>>? ReadPostings(string hash, IReadOnlyDictionary<string, TermLocation> wanted)
+    {
+        using FileStream? stream = TryOpenSegment(hash);
+        if (stream is null)
+            return null;
+        using var reader = new BinaryReader(stream, Encoding.UTF8);
+        var postings = new Dictionary<string, List<Posting>>(StringComparer.Ordinal);
+        foreach (var (term, location) in wanted.OrderBy(entry => entry.Value.Offset))
+            postings.Add(term, ReadPostings(reader, location));
+        return postings;
+    }
+
+    private static List<Posting> ReadPostings(BinaryReader reader, TermLocation location)
+    {
+        reader.BaseStream.Position = location.Offset;
+        var list = new List<Posting>(location.Count);
+        for (int i = 0; i < location.Count; i++)
+            list.Add(Posting.Read(reader));
+        return list;
+    }
+
+    private FileStream? TryOpenSegment(string hash) => TryOpen(GetSegmentPath(hash));
+
+    private static FileStream? TryOpen(string path)
+    {
+        try
+        {
+            // Delete sharing lets a writer remove a replaced or merged file while a query still reads it.
+            return new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read | FileShare.Delete);
+        }
+        catch (Exception e) when (e is FileNotFoundException or DirectoryNotFoundException)
+        {
+            return null;
+        }
+    }
+
+    private sealed record Manifest(int Generation, List<IndexedDocument> Documents);
+
+    /// <summary>
+    /// The in-memory part of a main file: document hashes by ordinal and the sorted term dictionary with
+    /// the offset of each term's postings block. The postings stay on disk.
+    /// </summary>
+    private sealed class MainIndex
+    {
+        private readonly long[] offsets;
+
+        private MainIndex(string path, int generation, string[] documents, string[] terms, long[] offsets)
+        {
+            Path = path;
+            Generation = generation;
+            Documents = documents;
+            Terms = terms;
+            this.offsets = offsets;
+        }
+
+        public string Path { get; }
+
+        public int Generation { get; }
+
+        public string[] Documents { get; }
+
+        public string[] Terms { get; }
+
+        public bool TryGetOffset(string term, out long offset)
+        {
+            int index = Array.BinarySearch(Terms, term, StringComparer.Ordinal);
+            offset = index >= 0 ? offsets[index] : 0;
+            return index >= 0;
+        }
+
+        public IEnumerable<string> GetTermsWithPrefix(string prefix)
+        {
+            int index = Array.BinarySearch(Terms, prefix, StringComparer.Ordinal);
+            for (index = index >= 0 ? index : ~index; index < Terms.Length && Terms[index].StartsWith(prefix, StringComparison.Ordinal); index++)
+                yield return Terms[index];
+        }
+
+        public FileStream? TryOpen() => TextIndex.TryOpen(Path);
+
+        // A block is the document count, then per document its ordinal, posting count and postings.
+        public static List<(int Ordinal, List<Posting> Postings)> ReadBlock(BinaryReader reader, long offset)
+        {
+            reader.BaseStream.Position = offset;
+            int count = reader.ReadInt32();
+            var block = new List<(int, List<Posting>)>(count);
+            for (int i = 0; i < count; i++)
+            {
+                int ordinal = reader.ReadInt32();
+                int postingCount = reader.ReadInt32();
+                var postings = new List<Posting>(postingCount);
+                for (int j = 0; j < postingCount; j++)
+                    postings.Add(Posting.Read(reader));
+                block.Add((ordinal, postings));
+            }
+            return block;
+        }
+
+        public static MainIndex Open(string path, int generation)
+        {
+            using var stream = new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read | FileShare.Delete);
+            using var reader = new BinaryReader(stream, Encoding.UTF8);
+            int version = reader.ReadInt32();
+            if (version != MAIN_VERSION)
+                throw new InvalidDataException($"Unsupported main index version {version}.");
+            stream.Position = reader.ReadInt64();
+            var documents = new string[reader.ReadInt32()];
+            for (int i = 0; i < documents.Length; i++)
+                documents[i] = reader.ReadString();
+            int termCount = reader.ReadInt32();
+            var terms = new string[termCount];
+            var offsets = new long[termCount];
+            for (int i = 0; i < termCount; i++)
+            {
+                terms[i] = reader.ReadString();
+                offsets[i] = reader.ReadInt64();
+            }
+            return new MainIndex(path, generation, documents, terms, offsets);
+        }
+    }
+
+    private readonly record struct TermLocation(int Count, long Offset);
+
+    private readonly record struct Posting(int Page, int Position, double X1, double Y1, double X2, double Y2)
+    {
+        // Quad points in the order Highlights uses: lower-left, lower-right, upper-right, upper-left.
+        public double[] ToQuad() => [X1, Y1, X2, Y1, X2, Y2, X1, Y2];
+
+        public void Write(BinaryWriter writer)
+        {
+            writer.Write(Page);
+            writer.Write(Position);
+            writer.Write(X1);
+            writer.Write(Y1);
+            writer.Write(X2);
+            writer.Write(Y2);
+        }
+
+        public static Posting Read(BinaryReader reader) =>
+            new(reader.ReadInt32(), reader.ReadInt32(), reader.ReadDouble(), reader.ReadDouble(), reader.ReadDouble(), reader.ReadDouble());
+    }
+}
@@ -0,0 +1,178 @@
+using Microsoft.Extensions.Logging;
+using Microsoft.Extensions.Options;
+using PDFFunctions.Options;
+using pdftron.PDF;
+using System.Collections.Concurrent;
+using System.Security.Cryptography;
+using System.Text;
+using System.Text.RegularExpressions;
+
+namespace PDFFunctions.Services.Text;
+
+/// <summary>
+/// One occurrence of a term or pattern: the text it matched and its quads, 8 doubles per quad.
+/// </summary>
+public record TermHit(string Term, int PageNumber, string Text, double[] Quads);
+
+/// <summary>
+/// Text layers of pages keyed by document content hash and page number: recently used ones in memory,
+/// all of them in a folder per document under <see cref="TextOptions.TextLayerDirectory"/>. Search, highlights and redaction
+/// of the same document reuse one extraction per page. A changed document gets a new hash, and the
+/// layers of its previous content are removed.
+/// </summary>
+public sealed class TextLayerCache
+{
+    private readonly ILogger logger;
+    private readonly DocumentTextExtractor textExtractor;
+    private readonly DocumentHasher hasher;
+    private readonly int capacity;
+    private readonly int lookahead;
+    private readonly string? directory;
+    private readonly object sync = new();
+    private readonly Dictionary<(string Hash, int Page), LinkedListNode<((string Hash, int Page) Key, PageTextLayer Layer)>> entries = new();
+    private readonly LinkedList<((string Hash, int Page) Key, PageTextLayer Layer)> lru = new();
+    private readonly ConcurrentDictionary<string, bool> cleanedSidecars = new();
+
+    public TextLayerCache(ILoggerFactory loggerFactory, IOptions<TextOptions> options, DocumentTextExtractor textExtractor, DocumentHasher hasher)
+    {
+        logger = loggerFactory.CreateLogger<TextLayerCache>();
+        this.textExtractor = textExtractor;
+        this.hasher = hasher;
+        capacity = Math.Max(1, options.Value.TextLayerCacheSize);
+        lookahead = 2 * Math.Max(1, options.Value.MaxDegreeOfParallelism ?? Environment.ProcessorCount);
+        directory = string.IsNullOrWhiteSpace(options.Value.TextLayerDirectory) ? null : options.Value.TextLayerDirectory;
+    }
+
+    /// <summary>
+    /// Returns the text layer of a page of <paramref name="doc"/>, which must be the open <paramref name="file"/>.
+    /// </summary>
+    public async Task<PageTextLayer> GetPageAsync(string file, PDFDoc doc, int pageNumber, CancellationToken cancellationToken = default)
+    {
+        string hash = hasher.GetHash(file);
+        var key = (hash, pageNumber);
+        lock (sync)
+        {
+            if (entries.TryGetValue(key, out var node))
+            {
+                lru.Remove(node);
+                lru.AddFirst(node);
+                return node.Value.Layer;
+            }
+        }
+
+        string? sidecar = GetSidecarPath(file, hash, pageNumber);
+        PageTextLayer? layer = sidecar is null ? null : TryRead(sidecar);
+        if (layer is null)
+        {
+            layer = await textExtractor.ExtractPageAsync(doc, pageNumber, extractor => PageTextLayer.Build(extractor, pageNumber), cancellationToken);
+            if (sidecar is not null)
+                TryWrite(file, hash, sidecar, layer);
+        }
+
+        lock (sync)
+        {
+            if (!entries.ContainsKey(key))
+            {
+                entries.Add(key, lru.AddFirst((key, layer)));
+                while (entries.Count > capacity)
+                {
+                    entries.Remove(lru.Last!.Value.Key);
+                    lru.RemoveLast();
+                }
+            }
+        }
+        return layer;
+    }
+
+    /// <summary>
+    /// Hands the text layer of every page to <paramref name="read"/> in page order, loading later pages meanwhile.
+    /// </summary>
+    public Task ForEachPageAsync(string file, PDFDoc doc, Func<PageTextLayer, Task> read, CancellationToken cancellationToken = default)
+    {
+        int pageCount;
+        doc.LockRead();
+        try
+        {
+            pageCount = doc.GetPageCount();
+        }
+        finally
+        {
+            doc.UnlockRead();
+        }
+        return OrderedPipeline.RunAsync(1, pageCount, lookahead, pageNumber => GetPageAsync(file, doc, pageNumber, cancellationToken), read);
+    }
+
+    /// <summary>
+    /// Finds every term of <paramref name="matcher"/>, scanning each page's text once for all terms.
+    /// Matches are handed to <paramref name="write"/> per page, in page order.
+    /// </summary>
+    public Task FindTermsAsync(string file, PDFDoc doc, TermMatcher matcher, Func<IReadOnlyList<TermHit>, Task> write, CancellationToken cancellationToken = default) =>
+        FindAsync(file, doc, text => matcher.Scan(text).Select(match => (matcher[match.Term], match.Index, match.Length)), write, cancellationToken);
+
+    /// <summary>
+    /// Finds every match of <paramref name="pattern"/>. Matches are handed to <paramref name="write"/>
+    /// per page, in page order.
+    /// </summary>
+    public Task FindAsync(string file, PDFDoc doc, Regex pattern, Func<IReadOnlyList<TermHit>, Task> write, CancellationToken cancellationToken = default) =>
+        FindAsync(file, doc, text => pattern.Matches(text).Where(match => match.Length > 0).Select(match => (pattern.ToString(), match.Index, match.Length)), write, cancellationToken);
+
+    private Task FindAsync(string file, PDFDoc doc, Func<string, IEnumerable<(string Term, int Index, int Length)>> find, Func<IReadOnlyList<TermHit>, Task> write, CancellationToken cancellationToken)
+    {
+        return ForEachPageAsync(file, doc, layer =>
+        {
+            var hits = find(layer.Text)
+                .Select(match => new TermHit(match.Term, layer.PageNumber, layer.Text.Substring(match.Index, match.Length), layer.GetQuads(match.Index, match.Length)))
+                .ToList();
+            return hits.Count == 0 ? Task.CompletedTask : write(hits);
+        }, cancellationToken);
+    }
+
+    // The folder is named after the document's full path, so documents with the same name in different folders stay apart.
+    private string? GetSidecarPath(string file, string hash, int pageNumber) =>
+        directory is null ? null : Path.Combine(directory, GetPathKey(file), $"{hash}.{pageNumber}.bin");
+
+    private static string GetPathKey(string file) =>
+        System.Convert.ToHexString(SHA256.HashData(Encoding.UTF8.GetBytes(Path.GetFullPath(file))))[..32];
+
+    private PageTextLayer? TryRead(string sidecar)
+    {
+        if (!File.Exists(sidecar))
+            return null;
+        try
+        {
+            using var stream = new FileStream(sidecar, FileMode.Open, FileAccess.Read, FileShare.Read);
+            using var reader = new BinaryReader(stream, Encoding.UTF8);
+            return PageTextLayer.Read(reader);
+        }
+        catch (Exception e) when (e is IOException or InvalidDataException or UnauthorizedAccessException)
+        {
+            logger.LogInformation("Exception caught reading text layer {0}:\n{1}", sidecar, e);
+            return null;
+        }
+    }
+
+    private void TryWrite(string file, string hash, string sidecar, PageTextLayer layer)
+    {
+        // A failed write only costs the persistence; the layer is still cached in memory.
+        try
+        {
+            string documentDirectory = Path.GetDirectoryName(sidecar)!;
+            Directory.CreateDirectory(documentDirectory);
+            if (cleanedSidecars.TryAdd($"{file}|{hash}", true))
+            {
+                foreach (string stale in Directory.EnumerateFiles(documentDirectory, "*.bin").Where(path => !Path.GetFileName(path).StartsWith(hash + ".", StringComparison.Ordinal)))
+                    File.Delete(stale);
+            }
+
+            string temp = $"{sidecar}.{Guid.NewGuid():N}.tmp";
+            using (var stream = new FileStream(temp, FileMode.CreateNew, FileAccess.Write))
+            using (var writer = new BinaryWriter(stream, Encoding.UTF8))
+                layer.Write(writer);
+            File.Move(temp, sidecar, true);
+        }
+        catch (Exception e) when (e is IOException or UnauthorizedAccessException)
+        {
+            logger.LogInformation("Exception caught writing text layer {0}:\n{1}", sidecar, e);
+        }
+    }
+}
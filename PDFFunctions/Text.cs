@@ -0,0 +1,374 @@
+using Microsoft.Azure.Functions.Worker;
+using Microsoft.Azure.Functions.Worker.Http;
+using Microsoft.Extensions.Logging;
+using PDFFunctions.Services;
+using PDFFunctions.Services.Text;
+using pdftron.PDF;
+using pdftron.SDF;
+using System.Collections;
+using System.Globalization;
+using System.Net;
+using System.Text.Json;
+using System.Text.RegularExpressions;
+using static PDFFunctions.HttpHelpers;
+
+namespace PDFFunctions;
+
+public class Text
+{
+    private const string MATCH_TIMEOUT_MESSAGE = "Pattern q took too long to match.";
+    private static readonly TimeSpan MATCH_TIMEOUT = TimeSpan.FromSeconds(5);
+
+    private readonly ILogger logger;
+    private readonly PDFNetRuntime runtime;
+    private readonly DocumentTextExtractor textExtractor;
+    private readonly TextIndex textIndex;
+    private readonly TextLayerCache textLayers;
+    private readonly string inputPath = @"..\..\..\..\sample\input";
+
+    public Text(ILoggerFactory loggerFactory, PDFNetRuntime runtime, DocumentTextExtractor textExtractor, TextIndex textIndex,
+        TextLayerCache textLayers)
+    {
+        this.runtime = runtime;
+        this.textExtractor = textExtractor;
+        this.textIndex = textIndex;
+        this.textLayers = textLayers;
+        logger = loggerFactory.CreateLogger<Text>();
+    }
+
+    [Function(nameof(ExtractText))]
+    public async Task<HttpResponseData> ExtractText(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(ExtractText))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(ExtractText)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+
+        TextFormat format = TextFormat.Text;
+        if (req.Query["format"] is { Length: > 0 } requested && !TryParseName(requested, out format))
+            return TextResponse(req, HttpStatusCode.BadRequest, "Unknown format, expected text, xml or json.");
+
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        response.Headers.Add("Content-Type", format switch
+        {
+            TextFormat.Xml => "application/xml; charset=utf-8",
+            TextFormat.Json => "application/json; charset=utf-8",
+            _ => "text/plain; charset=utf-8"
+        });
+        using (runtime.Acquire())
+        using (PDFDoc doc = new(file))
+        {
+            doc.InitSecurityHandler();
+            await textExtractor.ExtractAsync(doc, format, response.Body, req.FunctionContext.CancellationToken);
+        }
+        return response;
+    }
+
+    [Function(nameof(ExtractWords))]
+    public async Task<HttpResponseData> ExtractWords(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(ExtractWords))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(ExtractWords)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+
+        int pageNumber = int.TryParse(req.Query["page"], NumberStyles.Integer, CultureInfo.InvariantCulture, out int page) ? page : 1;
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        response.Headers.Add("Content-Type", "application/json; charset=utf-8");
+        using (runtime.Acquire())
+        using (PDFDoc doc = new(file))
+        {
+            doc.InitSecurityHandler();
+            if (pageNumber < 1 || pageNumber > doc.GetPageCount())
+                return TextResponse(req, HttpStatusCode.NotFound, "Page not found.");
+            using PageWords words = await textExtractor.ExtractWordsAsync(doc, pageNumber, req.FunctionContext.CancellationToken);
+            await using var writer = new Utf8JsonWriter(response.Body);
+            WriteColumns(writer, words);
+        }
+        return response;
+    }
+
+    [Function(nameof(FindTerms))]
+    public async Task<HttpResponseData> FindTerms(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "post", Route = nameof(FindTerms))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(FindTerms)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+        TermMatcher? matcher = await ReadTermMatcher(req);
+        if (matcher is null)
+            return TextResponse(req, HttpStatusCode.BadRequest, "Expected a JSON array of terms in the body.");
+
+        return await WriteHits(req, file, (doc, write) => textLayers.FindTermsAsync(file, doc, matcher, write, req.FunctionContext.CancellationToken));
+    }
+
+    [Function(nameof(SearchText))]
+    public async Task<HttpResponseData> SearchText(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(SearchText))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(SearchText)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+        Regex? pattern = GetPattern(req, out string? invalid);
+        if (pattern is null)
+            return TextResponse(req, HttpStatusCode.BadRequest, invalid ?? "Missing query parameter q.");
+
+        return await WriteHits(req, file, (doc, write) => textLayers.FindAsync(file, doc, pattern, write, req.FunctionContext.CancellationToken));
+    }
+
+    [Function(nameof(Redact))]
+    public async Task<HttpResponseData> Redact(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "post", Route = nameof(Redact))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(Redact)} processed a request.");
+        string? file = GetInputFile(req, inputPath);
+        if (file is null)
+            return TextResponse(req, HttpStatusCode.NotFound, "Input file not found.");
+        Regex? pattern = GetPattern(req, out string? invalid);
+        if (invalid is not null)
+            return TextResponse(req, HttpStatusCode.BadRequest, invalid);
+        TermMatcher? matcher = pattern is null ? await ReadTermMatcher(req) : null;
+        if (pattern is null && matcher is null)
+            return TextResponse(req, HttpStatusCode.BadRequest, "Expected a query parameter q or a JSON array of terms in the body.");
+
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        response.Headers.Add("Content-Type", "application/pdf");
+        response.Headers.Add("Content-Disposition", $"attachment; filename={Path.GetFileNameWithoutExtension(file)}_redacted.pdf");
+        using (runtime.Acquire())
+        using (PDFDoc doc = new(file))
+        {
+            doc.InitSecurityHandler();
+            // Regions come from the cached text layer; only the redaction itself touches the document.
+            var redactions = new ArrayList();
+            Task Collect(IReadOnlyList<TermHit> hits)
+            {
+                foreach (var hit in hits)
+                {
+                    foreach (var (x1, y1, x2, y2) in PageTextLayer.ToRegions(hit.Quads))
+                        redactions.Add(new Redactor.Redaction(hit.PageNumber, new Rect(x1, y1, x2, y2), false, string.Empty));
+                }
+                return Task.CompletedTask;
+            }
+            try
+            {
+                if (pattern is not null)
+                    await textLayers.FindAsync(file, doc, pattern, Collect, req.FunctionContext.CancellationToken);
+                else
+                    await textLayers.FindTermsAsync(file, doc, matcher!, Collect, req.FunctionContext.CancellationToken);
+            }
+            catch (RegexMatchTimeoutException)
+            {
+                return TextResponse(req, HttpStatusCode.BadRequest, MATCH_TIMEOUT_MESSAGE);
+            }
+
+            response.Headers.Add("X-Redactions", redactions.Count.ToString(CultureInfo.InvariantCulture));
+            if (redactions.Count > 0)
+            {
+                doc.Lock();
+                try
+                {
+                    Redactor.Redact(doc, redactions, new Redactor.Appearance { RedactionOverlay = true, Border = false }, false, true);
+                }
+                finally
+                {
+                    doc.Unlock();
+                }
+            }
+            doc.Save(response.Body, SDFDoc.SaveOptions.e_linearized);
+        }
+        return response;
+    }
+
+    private async Task<HttpResponseData> WriteHits(HttpRequestData req, string file, Func<PDFDoc, Func<IReadOnlyList<TermHit>, Task>, Task> find)
+    {
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        response.Headers.Add("Content-Type", "application/json; charset=utf-8");
+        using (runtime.Acquire())
+        using (PDFDoc doc = new(file))
+        {
+            doc.InitSecurityHandler();
+            await using var writer = new Utf8JsonWriter(response.Body);
+            writer.WriteStartArray();
+            bool flushed = false;
+            try
+            {
+                await find(doc, async hits =>
+                {
+                    foreach (var hit in hits)
+                    {
+                        writer.WriteStartObject();
+                        writer.WriteString("term", hit.Term);
+                        writer.WriteNumber("page", hit.PageNumber);
+                        writer.WriteString("text", hit.Text);
+                        WriteArray(writer, "quads", hit.Quads);
+                        writer.WriteEndObject();
+                    }
+                    flushed = true;
+                    await writer.FlushAsync(req.FunctionContext.CancellationToken);
+                });
+            }
+            // Once hits have been flushed the status is out, and the exception ends the response instead.
+            catch (RegexMatchTimeoutException) when (!flushed)
+            {
+                return TextResponse(req, HttpStatusCode.BadRequest, MATCH_TIMEOUT_MESSAGE);
+            }
+            writer.WriteEndArray();
+        }
+        return response;
+    }
+
+    private static async Task<TermMatcher?> ReadTermMatcher(HttpRequestData req)
+    {
+        List<string>? terms;
+        try
+        {
+            terms = await JsonSerializer.DeserializeAsync<List<string>>(req.Body, cancellationToken: req.FunctionContext.CancellationToken);
+        }
+        catch (JsonException)
+        {
+            return null;
+        }
+        if (terms is null || terms.Count == 0)
+            return null;
+        return new TermMatcher(terms,
+            ignoreCase: !string.Equals(req.Query["matchCase"], "true", StringComparison.OrdinalIgnoreCase),
+            wholeWords: !string.Equals(req.Query["wholeWords"], "false", StringComparison.OrdinalIgnoreCase));
+    }
+
+    // q is literal text unless regex=true; matching ignores case unless matchCase=true.
+    // A pattern that does not parse is reported through invalid.
+    private static Regex? GetPattern(HttpRequestData req, out string? invalid)
+    {
+        invalid = null;
+        string? query = req.Query["q"];
+        if (string.IsNullOrEmpty(query))
+            return null;
+        var options = RegexOptions.CultureInvariant;
+        if (!string.Equals(req.Query["matchCase"], "true", StringComparison.OrdinalIgnoreCase))
+            options |= RegexOptions.IgnoreCase;
+        try
+        {
+            bool regex = string.Equals(req.Query["regex"], "true", StringComparison.OrdinalIgnoreCase);
+            return new Regex(regex ? query : Regex.Escape(query), options, MATCH_TIMEOUT);
+        }
+        catch (ArgumentException e)
+        {
+            invalid = $"Invalid pattern q: {e.Message}";
+            return null;
+        }
+    }
+
+    [Function(nameof(IndexDocuments))]
+    public async Task<HttpResponseData> IndexDocuments(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(IndexDocuments))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(IndexDocuments)} processed a request.");
+        if (!textIndex.IsEnabled)
+            return TextResponse(req, HttpStatusCode.ServiceUnavailable, "Text__IndexDirectory is not configured.");
+
+        int added = 0, unchanged = 0;
+        var failed = new List<string>();
+        // Files deleted from the input folder stop producing hits.
+        int removed = await textIndex.RemoveMissingAsync(req.FunctionContext.CancellationToken);
+        using (runtime.Acquire())
+        {
+            foreach (string file in Directory.EnumerateFiles(inputPath, "*.pdf"))
+            {
+                try
+                {
+                    if (await textIndex.AddAsync(file, req.FunctionContext.CancellationToken))
+                        added++;
+                    else
+                        unchanged++;
+                }
+                catch (Exception e) when (e is not OperationCanceledException)
+                {
+                    logger.LogInformation("Exception caught:\n{0}", e);
+                    failed.Add(Path.GetFileName(file));
+                }
+            }
+        }
+
+        // Leaves one main index file with no pending segments and no removed documents.
+        await textIndex.CompactAsync(req.FunctionContext.CancellationToken);
+
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        await response.WriteAsJsonAsync(new { added, unchanged, removed, failed, documents = textIndex.Documents.Count });
+        return response;
+    }
+
+    [Function(nameof(SearchIndex))]
+    public async Task<HttpResponseData> SearchIndex(
+        [HttpTrigger(AuthorizationLevel.Anonymous, "get", Route = nameof(SearchIndex))]
+        HttpRequestData req)
+    {
+        logger.LogInformation($"C# HTTP trigger function {nameof(SearchIndex)} processed a request.");
+        if (!textIndex.IsEnabled)
+            return TextResponse(req, HttpStatusCode.ServiceUnavailable, "Text__IndexDirectory is not configured.");
+        string? query = req.Query["q"];
+        if (string.IsNullOrWhiteSpace(query))
+            return TextResponse(req, HttpStatusCode.BadRequest, "Missing query parameter q.");
+
+        int maxHits = int.TryParse(req.Query["max"], NumberStyles.Integer, CultureInfo.InvariantCulture, out int max) && max > 0 ? max : 1000;
+        var hits = textIndex.Search(query, maxHits)
+            .Select(hit => new { file = Path.GetFileName(hit.File), hash = hit.DocumentHash, page = hit.PageNumber, quads = hit.Quads });
+        var response = req.CreateResponse(HttpStatusCode.OK);
+        await response.WriteAsJsonAsync(hits);
+        return response;
+    }
+
+    // One array per column, so a 10k-word page is a few arrays rather than 10k objects.
+    private static void WriteColumns(Utf8JsonWriter writer, PageWords words)
+    {
+        writer.WriteStartObject();
+        writer.WriteNumber("page", words.PageNumber);
+        writer.WriteNumber("count", words.Count);
+        WriteArray(writer, "bboxes", words.BBoxes);
+        WriteArray(writer, "lines", words.LineIds);
+        WriteArray(writer, "flows", words.FlowIds);
+        WriteArray(writer, "paragraphs", words.ParagraphIds);
+        WriteArray(writer, "styleIds", words.StyleIds);
+        writer.WriteStartArray("styles");
+        foreach (var style in words.Styles)
+        {
+            writer.WriteStartObject();
+            writer.WriteString("font", style.FontName);
+            writer.WriteNumber("size", style.FontSize);
+            writer.WriteNumber("weight", style.Weight);
+            writer.WriteBoolean("italic", style.Italic);
+            writer.WriteBoolean("serif", style.Serif);
+            writer.WriteString("color", $"#{style.Color:x6}");
+            writer.WriteEndObject();
+        }
+        writer.WriteEndArray();
+        writer.WriteString("text", words.Text);
+        WriteArray(writer, "offsets", words.TextOffsets);
+        writer.WriteEndObject();
+    }
+
+    private static void WriteArray(Utf8JsonWriter writer, string name, ReadOnlySpan<double> values)
+    {
+        writer.WriteStartArray(name);
+        foreach (double value in values)
+            writer.WriteNumberValue(value);
+        writer.WriteEndArray();
+    }
+
+    private static void WriteArray(Utf8JsonWriter writer, string name, ReadOnlySpan<int> values)
+    {
+        writer.WriteStartArray(name);
+        foreach (int value in values)
+            writer.WriteNumberValue(value);
+        writer.WriteEndArray();
+    }
+}